@@ -0,0 +1,626 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.EphemeralDisk;
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.RestartPolicy;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskArtifact;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import static info.multani.jenkins.plugins.nomad.NomadJobTemplateBuilder.substituteEnv;
+import info.multani.jenkins.plugins.nomad.model.Affinity;
+import info.multani.jenkins.plugins.nomad.model.Constraint;
+import info.multani.jenkins.plugins.nomad.model.DockerMount;
+import info.multani.jenkins.plugins.nomad.model.Spread;
+import info.multani.jenkins.plugins.nomad.model.Volume;
+import info.multani.jenkins.plugins.nomad.model.VolumeMount;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A Nomad job specification compiled from a {@link NomadJobTemplate}.
+ *
+ * Everything which doesn't depend on the agent (environment, substituted
+ * images and commands, resources, etc.) is computed once per template version.
+ * Building the job of an agent only fills in the agent-specific values: job
+ * ID, agent name, secret and JNLP URL.
+ */
+final class CompiledJobTemplate {
+
+    private static final String JNLPMAC_VARIABLE = "computer.jnlpmac";
+
+    private static final String NAME_VARIABLE = "computer.name";
+
+    private static final String NODE_ID_TARGET = "${node.unique.id}";
+
+    /**
+     * Weight of the affinity for the Nomad client which last ran the job an
+     * agent is started for.
+     */
+    private static final int STICKY_NODE_WEIGHT = 75;
+
+    /**
+     * The template version and cloud configuration this job has been compiled
+     * for.
+     */
+    private final String key;
+
+    private final String jenkinsUrl;
+
+    private final Map<String, String> meta;
+
+    private final String region;
+
+    private final String[] datacenters;
+
+    @CheckForNull
+    private final Integer priority;
+
+    /**
+     * Placement of the task groups: constraints, affinities and spreads
+     */
+    private final List<Map<String, Object>> constraints;
+
+    private final List<Map<String, Object>> affinities;
+
+    private final List<Map<String, Object>> spreads;
+
+    private final List<CompiledTask> tasks;
+
+    private final boolean stickyNode;
+
+    /**
+     * Name of the single task group running all the tasks, or null if each
+     * task runs in its own task group.
+     */
+    @CheckForNull
+    private final String colocatedGroup;
+
+    CompiledJobTemplate(String key, String jenkinsUrl, Map<String, String> meta, String region,
+            String[] datacenters, @CheckForNull Integer priority, List<Map<String, Object>> constraints,
+            List<Map<String, Object>> affinities, List<Map<String, Object>> spreads,
+            List<CompiledTask> tasks, boolean stickyNode, @CheckForNull String colocatedGroup) {
+        this.key = key;
+        this.jenkinsUrl = jenkinsUrl;
+        this.meta = Collections.unmodifiableMap(new HashMap<>(meta));
+        this.region = region;
+        this.datacenters = datacenters.clone();
+        this.priority = priority;
+        this.constraints = Collections.unmodifiableList(new ArrayList<>(constraints));
+        this.affinities = Collections.unmodifiableList(new ArrayList<>(affinities));
+        this.spreads = Collections.unmodifiableList(new ArrayList<>(spreads));
+        this.tasks = Collections.unmodifiableList(new ArrayList<>(tasks));
+        this.stickyNode = stickyNode;
+        this.colocatedGroup = colocatedGroup;
+    }
+
+    /**
+     * Returns the key identifying the template version and the cloud
+     * configuration a template compiles to.
+     */
+    static String getKey(@Nonnull NomadJobTemplate template, @Nonnull NomadCloud cloud) {
+        return new StringBuilder()
+                .append(cloud.name).append('\n')
+                .append(cloud.getLabels()).append('\n')
+                .append(cloud.getRegion()).append('\n')
+                .append(cloud.getDatacentersList()).append('\n')
+                .append(cloud.getJenkinsUrlOrDie()).append('\n')
+                .append(cloud.getJenkinsTunnel()).append('\n')
+                .append(cloud.getSlaveUrl()).append('\n')
+                .append(template.getLabel()).append('\n')
+                .append(template.getSpecHash())
+                .toString();
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Builds the Nomad job of the given agent.
+     *
+     * @param slave the agent to build the job for
+     * @return a new Nomad job
+     */
+    Job instantiate(@Nonnull NomadSlave slave) {
+        NomadCloud cloud = slave.getNomadCloud();
+        // Each agent pulls its images from the next registry mirror, so that
+        // the pulls of a burst of agents are spread over the mirrors
+        String registryMirror = cloud.nextRegistryMirror();
+        Set<String> stickyNodes = stickyNode
+                ? NomadJobLocality.getPreferredNodes(cloud, slave)
+                : Collections.emptySet();
+        return instantiate(cloud, slave.getNodeName(), slave.getComputer().getJnlpMac(),
+                slave.getComputer().getName(), registryMirror, stickyNodes);
+    }
+
+    /**
+     * Builds a job equivalent to the job of an agent of this template, to be
+     * submitted to the plan endpoint of Nomad. The job only differs from the
+     * agents' jobs by its ID and its agent-specific values, which don't change
+     * where it can be placed.
+     *
+     * @param cloud the cloud the job would be started on
+     * @return a new Nomad job
+     */
+    Job instantiatePlan(@Nonnull NomadCloud cloud) {
+        String jobId = "jenkins-plan-" + Integer.toHexString(key.hashCode());
+        return instantiate(cloud, jobId, "", jobId, cloud.getRegistryMirrorsList().isEmpty()
+                ? null : cloud.getRegistryMirrorsList().get(0), Collections.emptySet());
+    }
+
+    private Job instantiate(NomadCloud cloud, String jobId, String jnlpMac, String agentName,
+            @CheckForNull String registryMirror, Set<String> stickyNodes) {
+        // Default values, which may be overridden by the template
+        Map<String, String> agentEnv = new HashMap<>();
+        agentEnv.put("JENKINS_SECRET", jnlpMac);
+        agentEnv.put("JENKINS_AGENT_NAME", agentName);
+        agentEnv.put("JENKINS_JNLP_URL", jenkinsUrl + "/computer/" + jobId + "/slave-agent.jnlp");
+
+        List<TaskGroup> taskGroups = new ArrayList<>(tasks.size());
+        if (colocatedGroup != null) {
+            // All the tasks in the same allocation: the agent task leads, its
+            // sidecars are stopped when it exits.
+            CompiledTask leader = getLeader();
+            List<Task> groupTasks = new ArrayList<>(tasks.size());
+            Map<String, Map<String, Object>> volumes = new LinkedHashMap<>();
+            Integer ephemeralDisk = null;
+            for (CompiledTask task : tasks) {
+                Task t = task.instantiateTask(agentEnv, jnlpMac, agentName, registryMirror);
+                if (task == leader) {
+                    t.setLeader(true);
+                }
+                groupTasks.add(t);
+                volumes.putAll(task.volumes);
+                if (task.resources.ephemeralDisk != null) {
+                    // The tasks share the ephemeral disk of the allocation
+                    ephemeralDisk = (ephemeralDisk == null ? 0 : ephemeralDisk) + task.resources.ephemeralDisk;
+                }
+            }
+            TaskGroup taskGroup = newTaskGroup(colocatedGroup, groupTasks, volumes, ephemeralDisk);
+            for (CompiledTask task : tasks) {
+                NomadImageLocality.addAffinity(cloud, taskGroup, task.image);
+            }
+            taskGroups.add(taskGroup);
+        } else {
+            for (CompiledTask task : tasks) {
+                TaskGroup taskGroup = task.instantiate(agentEnv, jnlpMac, agentName, registryMirror);
+                NomadImageLocality.addAffinity(cloud, taskGroup, task.image);
+                taskGroups.add(taskGroup);
+            }
+        }
+        for (TaskGroup taskGroup : taskGroups) {
+            applyPlacement(taskGroup);
+        }
+        if (!stickyNodes.isEmpty()) {
+            for (TaskGroup taskGroup : taskGroups) {
+                addAffinity(taskGroup, NODE_ID_TARGET, "set_contains_any", String.join(",", stickyNodes),
+                        STICKY_NODE_WEIGHT);
+            }
+        }
+
+        Job job = new Job();
+        job.setMeta(new HashMap<>(meta));
+        job.setId(jobId);
+        job.setName(jobId);
+        job.setRegion(region);
+        job.addDatacenters(datacenters);
+        job.setType("batch");
+        if (priority != null) {
+            job.setPriority(priority);
+        }
+        job.setTaskGroups(taskGroups);
+
+        return job;
+    }
+
+    /**
+     * Adds the constraints, affinities and spreads of the template to a task
+     * group.
+     *
+     * The Nomad SDK doesn't know about spreads (Nomad 0.9+) yet, they are
+     * sent as an unmapped property of the task group.
+     */
+    private void applyPlacement(TaskGroup taskGroup) {
+        for (Map<String, Object> constraint : constraints) {
+            taskGroup.addConstraints(new com.hashicorp.nomad.apimodel.Constraint()
+                    .setLTarget((String) constraint.get("LTarget"))
+                    .setOperand((String) constraint.get("Operand"))
+                    .setRTarget((String) constraint.get("RTarget")));
+        }
+        for (Map<String, Object> affinity : affinities) {
+            addAffinity(taskGroup, (String) affinity.get("LTarget"), (String) affinity.get("Operand"),
+                    (String) affinity.get("RTarget"), (Integer) affinity.get("Weight"));
+        }
+        if (!spreads.isEmpty()) {
+            taskGroup.setUnmappedProperty("Spreads", spreads);
+        }
+    }
+
+    /**
+     * Returns the task running the agent: the task named
+     * {@link NomadCloud#JNLP_NAME}, or else the first main task.
+     */
+    private CompiledTask getLeader() {
+        CompiledTask main = null;
+        for (CompiledTask task : tasks) {
+            if (NomadCloud.JNLP_NAME.equals(task.name)) {
+                return task;
+            }
+            if (main == null && task.lifecycleHook == null) {
+                main = task;
+            }
+        }
+        return main != null ? main : tasks.get(0);
+    }
+
+    private static TaskGroup newTaskGroup(String name, List<Task> tasks, Map<String, Map<String, Object>> volumes,
+            @CheckForNull Integer ephemeralDisk) {
+        TaskGroup taskGroup = new TaskGroup();
+        taskGroup.setName(name);
+        taskGroup.setTasks(tasks);
+        if (!volumes.isEmpty()) {
+            taskGroup.setUnmappedProperty("Volumes", volumes);
+        }
+        if (ephemeralDisk != null) {
+            taskGroup.setEphemeralDisk(new EphemeralDisk().setSizeMb(ephemeralDisk));
+        }
+
+        RestartPolicy restartPolicy = new RestartPolicy()
+                .setMode("fail")
+                .setAttempts(0);
+        taskGroup.setRestartPolicy(restartPolicy);
+
+        return taskGroup;
+    }
+
+    /**
+     * Returns the <code>volume</code> stanza of a task group.
+     *
+     * The Nomad SDK doesn't know about volumes (Nomad 0.10+) yet, they are
+     * sent as unmapped properties of the task group and of the tasks.
+     */
+    static Map<String, Object> getVolumeConfig(Volume volume) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("Name", volume.getName());
+        config.put("Type", volume.getType());
+        config.put("Source", substituteEnv(volume.getSource()));
+        config.put("ReadOnly", volume.isReadOnly());
+        if (volume.isCsi()) {
+            config.put("PerAlloc", volume.isPerAlloc());
+            config.put("AccessMode", volume.getAccessMode());
+            config.put("AttachmentMode", volume.getAttachmentMode());
+        }
+        return config;
+    }
+
+    /**
+     * Returns the <code>volume_mount</code> stanza of a task.
+     */
+    static Map<String, Object> getVolumeMountConfig(VolumeMount mount) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("Volume", mount.getVolume());
+        config.put("Destination", substituteEnv(mount.getDestination()));
+        config.put("ReadOnly", mount.isReadOnly());
+        return config;
+    }
+
+    static Map<String, Object> getConstraintConfig(Constraint constraint) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("LTarget", substituteEnv(constraint.getAttribute()));
+        config.put("Operand", constraint.getOperator());
+        config.put("RTarget", substituteEnv(constraint.getValue()));
+        return config;
+    }
+
+    static Map<String, Object> getAffinityConfig(Affinity affinity) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("LTarget", substituteEnv(affinity.getAttribute()));
+        config.put("Operand", affinity.getOperator());
+        config.put("RTarget", substituteEnv(affinity.getValue()));
+        config.put("Weight", affinity.getWeight());
+        return config;
+    }
+
+    /**
+     * Returns the <code>spread</code> stanza of a task group.
+     */
+    static Map<String, Object> getSpreadConfig(Spread spread) {
+        List<Map<String, Object>> targets = new ArrayList<>();
+        for (Map.Entry<String, Integer> target : spread.getTargetsMap().entrySet()) {
+            Map<String, Object> targetConfig = new HashMap<>();
+            targetConfig.put("Value", substituteEnv(target.getKey()));
+            targetConfig.put("Percent", target.getValue());
+            targets.add(targetConfig);
+        }
+        Map<String, Object> config = new HashMap<>();
+        config.put("Attribute", substituteEnv(spread.getAttribute()));
+        config.put("Weight", spread.getWeight());
+        if (!targets.isEmpty()) {
+            config.put("SpreadTarget", targets);
+        }
+        return config;
+    }
+
+    /**
+     * Returns the image pulled from a registry mirror: only the images of the
+     * Docker Hub, which don't name their registry, are rewritten.
+     *
+     * @param image the image of a task
+     * @param mirror the host (and port) of the registry mirror, or null
+     * @return the image to pull
+     */
+    static String withRegistryMirror(String image, @CheckForNull String mirror) {
+        if (mirror == null || image == null || image.isEmpty()) {
+            return image;
+        }
+        int slash = image.indexOf('/');
+        if (slash > 0) {
+            String first = image.substring(0, slash);
+            if (first.contains(".") || first.contains(":") || first.equals("localhost")) {
+                // The image names its registry
+                return image;
+            }
+            return mirror + "/" + image;
+        }
+        // Official images of the Docker Hub
+        return mirror + "/library/" + image;
+    }
+
+    /**
+     * Returns the image as named in the template, for an image which may
+     * have been rewritten by {@link #withRegistryMirror}.
+     *
+     * @param image the image pulled by a task
+     * @param mirrors the hosts (and ports) of the registry mirrors
+     * @return the image without the registry mirror, with the official
+     * images of the Docker Hub named without <code>library/</code>
+     */
+    static String withoutRegistryMirror(String image, List<String> mirrors) {
+        if (image == null) {
+            return null;
+        }
+        for (String mirror : mirrors) {
+            if (image.startsWith(mirror + "/")) {
+                image = image.substring(mirror.length() + 1);
+                break;
+            }
+        }
+        if (image.startsWith("library/") && image.indexOf('/', "library/".length()) < 0) {
+            return image.substring("library/".length());
+        }
+        return image;
+    }
+
+    /**
+     * Returns the Docker driver configuration of a mount.
+     */
+    static Map<String, Object> getDockerMountConfig(DockerMount mount) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("type", mount.getType());
+        config.put("target", substituteEnv(mount.getTarget()));
+        if (mount.getSource() != null) {
+            config.put("source", substituteEnv(mount.getSource()));
+        }
+        config.put("readonly", mount.isReadOnly());
+        return config;
+    }
+
+    /**
+     * Adds an affinity to a task group, after the affinities it already has.
+     *
+     * The Nomad SDK doesn't know about affinities (Nomad 0.9+) yet, they are
+     * sent as an unmapped property of the task group.
+     */
+    @SuppressWarnings("unchecked")
+    static void addAffinity(TaskGroup taskGroup, String lTarget, String operand, String rTarget, int weight) {
+        Map<String, Object> affinity = new HashMap<>();
+        affinity.put("LTarget", lTarget);
+        affinity.put("Operand", operand);
+        affinity.put("RTarget", rTarget);
+        affinity.put("Weight", Math.max(-100, Math.min(weight, 100)));
+
+        List<Object> affinities = new ArrayList<>();
+        Map<String, Object> unmapped = taskGroup.getUnmappedProperties();
+        if (unmapped != null && unmapped.get("Affinities") instanceof List) {
+            affinities.addAll((List<Object>) unmapped.get("Affinities"));
+        }
+        affinities.add(affinity);
+        taskGroup.setUnmappedProperty("Affinities", affinities);
+    }
+
+    /**
+     * A task compiled from a {@link TaskTemplate}, running in its own task
+     * group.
+     */
+    static final class CompiledTask {
+
+        private final String name;
+
+        private final String image;
+
+        private final String command;
+
+        /**
+         * Arguments, which may reference the agent secret and name
+         */
+        private final List<Macro> args;
+
+        private final Map<String, String> env;
+
+        private final Map<String, Object> auth;
+
+        private final String artifactSource;
+
+        private final String artifactChecksum;
+
+        private final CompiledResources resources;
+
+        /**
+         * Volumes of the task group, indexed by name
+         */
+        private final Map<String, Map<String, Object>> volumes;
+
+        private final List<Map<String, Object>> volumeMounts;
+
+        private final List<Map<String, Object>> dockerMounts;
+
+        /**
+         * When the task runs relatively to the main tasks, or null for a main
+         * task
+         */
+        @CheckForNull
+        private final String lifecycleHook;
+
+        private final boolean sidecar;
+
+        CompiledTask(String name, String image, String command, List<String> args, Map<String, String> env,
+                @CheckForNull Map<String, Object> auth, @CheckForNull String artifactSource,
+                @CheckForNull String artifactChecksum,
+                CompiledResources resources, Map<String, Map<String, Object>> volumes,
+                List<Map<String, Object>> volumeMounts, List<Map<String, Object>> dockerMounts,
+                @CheckForNull String lifecycleHook, boolean sidecar) {
+            this.name = name;
+            this.image = image;
+            this.command = command;
+            List<Macro> parsedArgs = new ArrayList<>(args.size());
+            args.forEach(arg -> parsedArgs.add(Macro.parseBraced(arg)));
+            this.args = Collections.unmodifiableList(parsedArgs);
+            this.env = Collections.unmodifiableMap(new HashMap<>(env));
+            this.auth = auth == null ? null : Collections.unmodifiableMap(new HashMap<>(auth));
+            this.artifactSource = artifactSource;
+            this.artifactChecksum = artifactChecksum;
+            this.resources = resources;
+            this.volumes = Collections.unmodifiableMap(new LinkedHashMap<>(volumes));
+            this.volumeMounts = Collections.unmodifiableList(new ArrayList<>(volumeMounts));
+            this.dockerMounts = Collections.unmodifiableList(new ArrayList<>(dockerMounts));
+            this.lifecycleHook = lifecycleHook;
+            this.sidecar = sidecar;
+        }
+
+        TaskGroup instantiate(Map<String, String> agentEnv, String jnlpMac, String agentName,
+                @CheckForNull String registryMirror) {
+            return newTaskGroup(name,
+                    Collections.singletonList(instantiateTask(agentEnv, jnlpMac, agentName, registryMirror)),
+                    volumes, resources.ephemeralDisk);
+        }
+
+        Task instantiateTask(Map<String, String> agentEnv, String jnlpMac, String agentName,
+                @CheckForNull String registryMirror) {
+            // Last-write wins map of environment variable names to values
+            Map<String, String> taskEnv = new HashMap<>(agentEnv);
+            taskEnv.putAll(env);
+
+            Function<String, String> variables = name -> JNLPMAC_VARIABLE.equals(name) ? jnlpMac
+                    : NAME_VARIABLE.equals(name) ? agentName
+                    : null;
+            List<String> arguments = new ArrayList<>(args.size());
+            for (Macro arg : args) {
+                arguments.add(arg == null ? null : arg.render(variables));
+            }
+
+            Task task = new Task();
+            task.setName(name);
+            task.setDriver("docker");
+            task.addConfig("image", withRegistryMirror(image, registryMirror));
+            task.addConfig("command", command);
+            task.addConfig("args", arguments);
+            task.addConfig("network_mode", "host");
+            if (auth != null) {
+                task.addConfig("auth", auth);
+            }
+            if (!dockerMounts.isEmpty()) {
+                task.addConfig("mounts", dockerMounts);
+            }
+            if (!volumeMounts.isEmpty()) {
+                task.setUnmappedProperty("VolumeMounts", volumeMounts);
+            }
+
+            if (artifactSource != null) {
+                TaskArtifact artifact = new TaskArtifact()
+                        .setGetterSource(artifactSource)
+                        .setRelativeDest("/local/");
+                if (artifactChecksum != null) {
+                    artifact.setGetterOptions(Collections.singletonMap("checksum", artifactChecksum));
+                }
+                task.addArtifacts(artifact);
+            }
+
+            task.setEnv(taskEnv);
+
+            task.setResources(resources.instantiate());
+
+            if (lifecycleHook != null) {
+                // The Nomad SDK doesn't know about lifecycle hooks (Nomad 0.11+) yet
+                Map<String, Object> lifecycle = new HashMap<>();
+                lifecycle.put("Hook", lifecycleHook);
+                lifecycle.put("Sidecar", sidecar);
+                task.setUnmappedProperty("Lifecycle", lifecycle);
+            }
+
+            return task;
+        }
+    }
+
+    /**
+     * Resources requested by a task.
+     */
+    static final class CompiledResources {
+
+        private final Integer cpu;
+
+        private final Integer memory;
+
+        @CheckForNull
+        private final Integer cores;
+
+        @CheckForNull
+        private final Integer memoryMax;
+
+        private final List<Map<String, Object>> devices;
+
+        /**
+         * Size of the ephemeral disk of the task group, in MB
+         */
+        @CheckForNull
+        private final Integer ephemeralDisk;
+
+        CompiledResources(Integer cpu, Integer memory, @CheckForNull Integer cores, @CheckForNull Integer memoryMax,
+                List<Map<String, Object>> devices, @CheckForNull Integer ephemeralDisk) {
+            this.cpu = cpu;
+            this.memory = memory;
+            this.cores = cores;
+            this.memoryMax = memoryMax;
+            this.devices = Collections.unmodifiableList(new ArrayList<>(devices));
+            this.ephemeralDisk = ephemeralDisk;
+        }
+
+        Resources instantiate() {
+            Resources resources = new Resources()
+                    .setMemoryMb(memory);
+            // Reserved cores replace the CPU shares. The Nomad SDK doesn't
+            // know about cores (Nomad 1.1+), memory oversubscription (Nomad
+            // 1.1+) and devices (Nomad 0.9+) yet.
+            if (cores != null) {
+                resources.setUnmappedProperty("Cores", cores);
+            } else {
+                resources.setCpu(cpu);
+            }
+            if (memoryMax != null) {
+                resources.setUnmappedProperty("MemoryMaxMB", memoryMax);
+            }
+            if (!devices.isEmpty()) {
+                resources.setUnmappedProperty("Devices", devices);
+            }
+            return resources;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Run;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.util.Timer;
+
+/**
+ * Saves builds in the background, for the actions of the plugin modified while
+ * the builds run.
+ *
+ * Several modifications of a build happening in a short time only lead to a
+ * single write of the build, whichever actions they modify.
+ */
+public final class DelayedRunSaver {
+
+    private static final Logger LOGGER = Logger.getLogger(DelayedRunSaver.class.getName());
+
+    /**
+     * Delay before saving a build once it has been modified.
+     */
+    private static final long SAVE_DELAY_MS = Long.getLong(DelayedRunSaver.class.getName() + ".saveDelay", 1000);
+
+    /**
+     * Builds waiting to be saved.
+     */
+    private static final Set<Run<?, ?>> PENDING = ConcurrentHashMap.newKeySet();
+
+    private DelayedRunSaver() {
+    }
+
+    /**
+     * Saves a build in the background, unless it is already about to be
+     * saved.
+     *
+     * @param run the build to save
+     */
+    public static void schedule(@Nonnull Run<?, ?> run) {
+        if (!PENDING.add(run)) {
+            return;
+        }
+        Timer.get().schedule(() -> {
+            // Modifications made from now on need another save
+            PENDING.remove(run);
+            try {
+                run.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save " + run, e);
+            }
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+}
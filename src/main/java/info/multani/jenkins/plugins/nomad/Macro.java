@@ -0,0 +1,166 @@
+package info.multani.jenkins.plugins.nomad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A string referencing variables, parsed once and rendered many times.
+ *
+ * Variables are referenced as <code>$NAME</code> or <code>${NAME}</code>, and
+ * <code>$$</code> stands for a single <code>$</code>, like in
+ * {@link hudson.Util#replaceMacro(String, java.util.Map)}. References to
+ * unknown variables are left untouched.
+ */
+public final class Macro {
+
+    /**
+     * Literal parts of the string, one more than the number of references.
+     */
+    private final String[] literals;
+
+    /**
+     * Names of the referenced variables.
+     */
+    private final String[] names;
+
+    /**
+     * References as written in the string, rendered when the variable is
+     * unknown.
+     */
+    private final String[] references;
+
+    private Macro(List<String> literals, List<String> names, List<String> references) {
+        this.literals = literals.toArray(new String[0]);
+        this.names = names.toArray(new String[0]);
+        this.references = references.toArray(new String[0]);
+    }
+
+    /**
+     * Parses a string using {@link hudson.Util#replaceMacro(String, java.util.Map)}
+     * syntax.
+     *
+     * @param s the string to parse
+     * @return the parsed string, or null if the string is null
+     */
+    @CheckForNull
+    public static Macro parse(@CheckForNull String s) {
+        return s == null ? null : parse(s, false);
+    }
+
+    /**
+     * Parses a string only considering <code>${NAME}</code> references: other
+     * <code>$</code> characters are kept as is.
+     *
+     * @param s the string to parse
+     * @return the parsed string, or null if the string is null
+     */
+    @CheckForNull
+    public static Macro parseBraced(@CheckForNull String s) {
+        return s == null ? null : parse(s, true);
+    }
+
+    private static Macro parse(@Nonnull String s, boolean bracedOnly) {
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> references = new ArrayList<>();
+
+        StringBuilder literal = new StringBuilder();
+        int length = s.length();
+        int i = 0;
+        while (i < length) {
+            char c = s.charAt(i);
+            if (c == '$' && i + 1 < length) {
+                char next = s.charAt(i + 1);
+                if (next == '$' && !bracedOnly) {
+                    literal.append('$');
+                    i += 2;
+                    continue;
+                }
+
+                int start;
+                int end;
+                if (next == '{') {
+                    start = i + 2;
+                    end = start;
+                    while (end < length && (isNameChar(s.charAt(end)) || s.charAt(end) == '.')) {
+                        end++;
+                    }
+                    if (end > start && end < length && s.charAt(end) == '}') {
+                        literals.add(literal.toString());
+                        literal.setLength(0);
+                        names.add(s.substring(start, end));
+                        references.add(s.substring(i, end + 1));
+                        i = end + 1;
+                        continue;
+                    }
+                } else if (!bracedOnly && isNameChar(next)) {
+                    start = i + 1;
+                    end = start;
+                    while (end < length && isNameChar(s.charAt(end))) {
+                        end++;
+                    }
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    names.add(s.substring(start, end));
+                    references.add(s.substring(i, end));
+                    i = end;
+                    continue;
+                }
+            }
+            literal.append(c);
+            i++;
+        }
+        literals.add(literal.toString());
+
+        return new Macro(literals, names, references);
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * @return true if the string doesn't reference any variable.
+     */
+    public boolean isConstant() {
+        return names.length == 0;
+    }
+
+    /**
+     * Renders the string, looking up the value of each referenced variable.
+     *
+     * @param variables returns the value of a variable, or null if the
+     * variable is unknown
+     * @return the rendered string
+     */
+    @Nonnull
+    public String render(@Nonnull Function<String, String> variables) {
+        if (isConstant()) {
+            return literals[0];
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            sb.append(literals[i]);
+            String value = variables.apply(names[i]);
+            sb.append(value == null ? references[i] : value);
+        }
+        sb.append(literals[names.length]);
+        return sb.toString();
+    }
+
+    /**
+     * Parses and renders a string at once.
+     *
+     * @param s the string to render
+     * @param variables returns the value of a variable, or null if the
+     * variable is unknown
+     * @return the rendered string, or null if the string is null
+     */
+    @CheckForNull
+    public static String render(@CheckForNull String s, @Nonnull Function<String, String> variables) {
+        return s == null ? null : parse(s, false).render(variables);
+    }
+}
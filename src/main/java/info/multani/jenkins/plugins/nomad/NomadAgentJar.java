@@ -0,0 +1,74 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Slave;
+import hudson.remoting.Launcher;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * The agent JAR distributed by the Jenkins controller.
+ *
+ * The checksum of the JAR is computed once, and passed along with the artifact
+ * of the tasks so the Nomad clients verify what they download, wherever they
+ * download it from.
+ */
+final class NomadAgentJar {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadAgentJar.class.getName());
+
+    private static final String JAR_NAME = "slave.jar";
+
+    /**
+     * Lazily computed checksum, empty if it couldn't be computed.
+     */
+    private static volatile String checksum;
+
+    private NomadAgentJar() {
+    }
+
+    /**
+     * @return the version of the agent JAR bundled with Jenkins
+     */
+    static String getVersion() {
+        return Launcher.VERSION;
+    }
+
+    /**
+     * Returns the checksum of the agent JAR, in the format of the
+     * <code>checksum</code> option of the Nomad artifacts.
+     *
+     * @return the checksum, or null if it can't be computed
+     */
+    @CheckForNull
+    static String getChecksum() {
+        String result = checksum;
+        if (result == null) {
+            result = computeChecksum();
+            checksum = result;
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    private static String computeChecksum() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(new Slave.JnlpJar(JAR_NAME).getURL().openStream(), digest)) {
+                IOUtils.copy(in, new NullOutputStream());
+            }
+            return "sha256:" + Hex.encodeHexString(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            LOGGER.log(Level.WARNING, "Unable to compute the checksum of the agent JAR, "
+                    + "agents will download it without verification", e);
+            return "";
+        }
+    }
+}
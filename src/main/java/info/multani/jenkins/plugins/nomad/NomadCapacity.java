@@ -0,0 +1,587 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Allocation;
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Constraint;
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.NodeListStub;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps a model of the CPU and memory available on the Nomad clients of the
+ * clouds, so that they don't request more agents than Nomad can place.
+ *
+ * The model is refreshed periodically from the resources of the ready Nomad
+ * clients of the region of each cloud, minus their reserved resources and the
+ * resources of their running allocations. The clients and the allocations are
+ * listed at each refresh; the resources of a client are only queried again
+ * when it has been modified, and those of an allocation when it is first
+ * seen. In between, the agents requested by the cloud are deducted from the
+ * model as they are provisioned, from the clients of the datacenters and node
+ * classes they can be placed in.
+ *
+ * Only the clouds with {@link NomadCloud#isCapacityAware()} enabled are
+ * modeled.
+ */
+@Extension
+public class NomadCapacity extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadCapacity.class.getName());
+
+    private static final String NODE_CLASS = "${node.class}";
+
+    private static final long RECURRENCE_PERIOD = TimeUnit.SECONDS.toMillis(
+            Long.getLong(NomadCapacity.class.getName() + ".recurrencePeriod", 60));
+
+    /**
+     * Clients of each cloud, by cloud name.
+     */
+    private final Map<String, List<NodeCapacity>> clouds = new ConcurrentHashMap<>();
+
+    /**
+     * Resources of the Nomad clients, by node ID.
+     */
+    private final Map<String, NodeResources> nodeResources = new ConcurrentHashMap<>();
+
+    /**
+     * Resources of the running allocations, by allocation ID: they don't
+     * change during the life of an allocation.
+     */
+    private final Map<String, Resources> allocationResources = new ConcurrentHashMap<>();
+
+    public NomadCapacity() {
+        super("Nomad capacity");
+    }
+
+    public static NomadCapacity get() {
+        return ExtensionList.lookupSingleton(NomadCapacity.class);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        List<String> refreshed = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Cloud c : Jenkins.get().clouds) {
+            if (!(c instanceof NomadCloud) || !((NomadCloud) c).isCapacityAware()) {
+                continue;
+            }
+            NomadCloud cloud = (NomadCloud) c;
+            try {
+                clouds.put(cloud.name, refresh(cloud, seen));
+                refreshed.add(cloud.name);
+            } catch (IOException | NomadException e) {
+                // Keep the previous model: it's still closer to the truth than
+                // no model at all
+                LOGGER.log(Level.WARNING, String.format("Failed to refresh the capacity of cloud %s", cloud.name), e);
+                if (clouds.containsKey(cloud.name)) {
+                    refreshed.add(cloud.name);
+                }
+            }
+        }
+        clouds.keySet().retainAll(refreshed);
+        nodeResources.keySet().retainAll(seen);
+        allocationResources.keySet().retainAll(seen);
+    }
+
+    /**
+     * Returns the capacity of the ready Nomad clients of a cloud.
+     *
+     * @param seen updated with the IDs of the clients and allocations listed
+     */
+    private List<NodeCapacity> refresh(NomadCloud cloud, Set<String> seen) throws IOException, NomadException {
+        try (NomadApiClient client = cloud.connect()) {
+            Map<String, Integer> usedCpu = new HashMap<>();
+            Map<String, Integer> usedMemory = new HashMap<>();
+            for (AllocationListStub allocation : client.getAllocationsApi().list().getValue()) {
+                if (!"run".equals(allocation.getDesiredStatus())
+                        || !("pending".equals(allocation.getClientStatus())
+                        || "running".equals(allocation.getClientStatus()))) {
+                    continue;
+                }
+                seen.add(allocation.getId());
+                Resources resources = allocationResources.get(allocation.getId());
+                if (resources == null) {
+                    Allocation info = client.getAllocationsApi().info(allocation.getId()).getValue();
+                    if (info == null || info.getResources() == null) {
+                        continue;
+                    }
+                    resources = info.getResources();
+                    allocationResources.put(allocation.getId(), resources);
+                }
+                usedCpu.merge(allocation.getNodeId(), getCpu(resources), Integer::sum);
+                usedMemory.merge(allocation.getNodeId(), getMemory(resources), Integer::sum);
+            }
+
+            List<NodeCapacity> nodes = new ArrayList<>();
+            // All the datacenters: the templates may choose other datacenters
+            // than the cloud
+            for (NodeListStub stub : client.getNodesApi().list().getValue()) {
+                if (!"ready".equals(stub.getStatus()) || stub.getDrain()) {
+                    continue;
+                }
+                seen.add(stub.getId());
+                NodeResources resources = nodeResources.get(stub.getId());
+                if (resources == null || !Objects.equals(resources.modifyIndex, stub.getModifyIndex())) {
+                    com.hashicorp.nomad.apimodel.Node node = client.getNodesApi().info(stub.getId()).getValue();
+                    if (node == null || node.getResources() == null) {
+                        continue;
+                    }
+                    resources = new NodeResources(stub.getModifyIndex(), node);
+                    nodeResources.put(stub.getId(), resources);
+                }
+                nodes.add(new NodeCapacity(stub.getDatacenter(), stub.getNodeClass(),
+                        resources.cpu, resources.memory, resources.cpuPerCore,
+                        resources.cpu - usedCpu.getOrDefault(stub.getId(), 0),
+                        resources.memory - usedMemory.getOrDefault(stub.getId(), 0)));
+            }
+            LOGGER.log(Level.FINE, "Refreshed the capacity of cloud {0}: {1} Nomad client(s)",
+                    new Object[]{cloud.name, nodes.size()});
+            return Collections.unmodifiableList(nodes);
+        }
+    }
+
+    /**
+     * Reserves the resources of up to <code>count</code> agents of a template.
+     *
+     * Each agent is deducted from the first client with enough free CPU and
+     * memory for all its tasks, in the datacenters of the template, or of the
+     * cloud if the template doesn't set any, and of the node classes allowed
+     * by the constraints of the template. The cores reserved by the tasks are
+     * counted with the CPU of the cores of the client.
+     *
+     * @param cloud the cloud the agents are requested from
+     * @param template the template of the agents
+     * @param count the number of agents requested
+     * @return the reservation, for the number of agents which fit in the free
+     * capacity, or for <code>count</code> agents if the capacity of the cloud
+     * isn't known yet, or if the template runs its agents in another region
+     * than the cloud
+     */
+    Reservation reserve(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template, int count) {
+        List<NodeCapacity> nodes = clouds.get(cloud.name);
+        if (nodes == null) {
+            return new Reservation(count);
+        }
+        Job job = new NomadJobTemplateBuilder(template).buildPlan(cloud);
+        if (job.getRegion() != null && !job.getRegion().equals(cloud.getRegion())) {
+            // Only the clients of the region of the cloud are modeled
+            return new Reservation(count);
+        }
+        List<String> datacenters = job.getDatacenters() == null
+                ? Collections.emptyList() : job.getDatacenters();
+        List<Constraint> constraints = new ArrayList<>();
+        addAll(constraints, job.getConstraints());
+        int cpu = 0;
+        int cores = 0;
+        int memory = 0;
+        for (TaskGroup taskGroup : job.getTaskGroups()) {
+            addAll(constraints, taskGroup.getConstraints());
+            for (Task task : taskGroup.getTasks()) {
+                addAll(constraints, task.getConstraints());
+                cpu += getCpu(task.getResources());
+                cores += getCores(task.getResources());
+                memory += getMemory(task.getResources());
+            }
+        }
+        Reservation reservation = new Reservation(cpu, cores, memory);
+        for (NodeCapacity node : nodes) {
+            if (!datacenters.isEmpty() && !datacenters.contains(node.datacenter)) {
+                continue;
+            }
+            if (!allowsNodeClass(constraints, node.nodeClass)) {
+                continue;
+            }
+            while (reservation.getCount() < count && node.reserve(reservation.getCpu(node), memory)) {
+                reservation.nodes.add(node);
+            }
+        }
+        return reservation;
+    }
+
+    /**
+     * Returns whether constraints allow the jobs to run on the clients of a
+     * node class. The other constraints are ignored.
+     */
+    private static boolean allowsNodeClass(List<Constraint> constraints, String nodeClass) {
+        for (Constraint constraint : constraints) {
+            if (!NODE_CLASS.equals(constraint.getLTarget()) || constraint.getRTarget() == null) {
+                continue;
+            }
+            String operand = constraint.getOperand() == null ? "=" : constraint.getOperand();
+            switch (operand) {
+                case "=":
+                case "==":
+                case "is":
+                    if (!constraint.getRTarget().equals(nodeClass)) {
+                        return false;
+                    }
+                    break;
+                case "!=":
+                case "not":
+                    if (constraint.getRTarget().equals(nodeClass)) {
+                        return false;
+                    }
+                    break;
+                case "regexp":
+                    try {
+                        if (!Pattern.compile(constraint.getRTarget()).matcher(nodeClass).find()) {
+                            return false;
+                        }
+                    } catch (PatternSyntaxException e) {
+                        // Nomad won't place the job anywhere: let it tell
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static void addAll(List<Constraint> constraints, @CheckForNull List<Constraint> more) {
+        if (more != null) {
+            constraints.addAll(more);
+        }
+    }
+
+    /**
+     * Returns the share of the capacity of a cloud which is still free: the
+     * lowest of the free CPU and memory shares of the clients of the
+     * datacenters of the cloud.
+     *
+     * @param cloud the cloud to look at
+     * @return the free share, between 0 and 1, or 1 if the capacity of the
+     * cloud isn't known yet
+     */
+    double getFreeShare(@Nonnull NomadCloud cloud) {
+        List<NodeCapacity> nodes = clouds.get(cloud.name);
+        if (nodes == null) {
+            return 1;
+        }
+        long cpu = 0;
+        long freeCpu = 0;
+        long memory = 0;
+        long freeMemory = 0;
+        List<String> datacenters = cloud.getDatacentersList();
+        for (NodeCapacity node : nodes) {
+            if (!datacenters.isEmpty() && !datacenters.contains(node.datacenter)) {
+                continue;
+            }
+            cpu += node.cpu;
+            freeCpu += node.getFreeCpu();
+            memory += node.memory;
+            freeMemory += node.getFreeMemory();
+        }
+        if (cpu <= 0 || memory <= 0) {
+            return 0;
+        }
+        return Math.min((double) freeCpu / cpu, (double) freeMemory / memory);
+    }
+
+    /**
+     * @return the capacity of the Nomad clients, per cloud, datacenter and
+     * node class
+     */
+    @Nonnull
+    public List<CapacitySummary> getCapacities() {
+        Map<String, CapacitySummary> summaries = new TreeMap<>();
+        clouds.forEach((cloudName, nodes) -> {
+            for (NodeCapacity node : nodes) {
+                summaries.computeIfAbsent(cloudName + "/" + node.datacenter + "/" + node.nodeClass,
+                        k -> new CapacitySummary(cloudName, node.datacenter, node.nodeClass))
+                        .add(node);
+            }
+        });
+        return new ArrayList<>(summaries.values());
+    }
+
+    private static int getCpu(Resources resources) {
+        return resources == null ? 0 : toInt(resources.getCpu());
+    }
+
+    private static int getCores(Resources resources) {
+        // The Nomad SDK doesn't know about cores (Nomad 1.1+) yet
+        Map<String, Object> unmapped = resources == null ? null : resources.getUnmappedProperties();
+        Object cores = unmapped == null ? null : unmapped.get("Cores");
+        return cores instanceof Number ? ((Number) cores).intValue() : 0;
+    }
+
+    private static int getMemory(Resources resources) {
+        return resources == null ? 0 : toInt(resources.getMemoryMb());
+    }
+
+    private static int toInt(Integer value) {
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Allocatable resources of a Nomad client, as of a modification of the
+     * client.
+     */
+    private static final class NodeResources {
+
+        private final BigInteger modifyIndex;
+
+        private final int cpu;
+
+        private final int memory;
+
+        private final int cpuPerCore;
+
+        NodeResources(BigInteger modifyIndex, com.hashicorp.nomad.apimodel.Node node) {
+            this.modifyIndex = modifyIndex;
+            int totalCpu = toInt(node.getResources().getCpu());
+            this.cpu = totalCpu - getCpu(node.getReserved());
+            this.memory = toInt(node.getResources().getMemoryMb()) - getMemory(node.getReserved());
+            int numCores = 0;
+            String attribute = node.getAttributes() == null ? null : node.getAttributes().get("cpu.numcores");
+            if (attribute != null) {
+                try {
+                    numCores = Integer.parseInt(attribute);
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.FINE, "Invalid number of cores of Nomad client {0}: {1}",
+                            new Object[]{node.getId(), attribute});
+                }
+            }
+            this.cpuPerCore = numCores > 0 ? totalCpu / numCores : 0;
+        }
+    }
+
+    /**
+     * Resources of a Nomad client.
+     */
+    private static final class NodeCapacity {
+
+        private final String datacenter;
+
+        private final String nodeClass;
+
+        private final int cpu;
+
+        private final int memory;
+
+        /**
+         * CPU of a core, in MHz, or 0 if unknown.
+         */
+        private final int cpuPerCore;
+
+        private int freeCpu;
+
+        private int freeMemory;
+
+        NodeCapacity(String datacenter, String nodeClass, int cpu, int memory, int cpuPerCore,
+                int freeCpu, int freeMemory) {
+            this.datacenter = datacenter;
+            this.nodeClass = nodeClass == null ? "" : nodeClass;
+            this.cpu = cpu;
+            this.memory = memory;
+            this.cpuPerCore = cpuPerCore;
+            this.freeCpu = freeCpu;
+            this.freeMemory = freeMemory;
+        }
+
+        synchronized boolean reserve(int cpu, int memory) {
+            if (freeCpu < cpu || freeMemory < memory) {
+                return false;
+            }
+            freeCpu -= cpu;
+            freeMemory -= memory;
+            return true;
+        }
+
+        synchronized void release(int cpu, int memory) {
+            freeCpu += cpu;
+            freeMemory += memory;
+        }
+
+        synchronized int getFreeCpu() {
+            return Math.max(0, freeCpu);
+        }
+
+        synchronized int getFreeMemory() {
+            return Math.max(0, freeMemory);
+        }
+    }
+
+    /**
+     * Resources reserved for agents of a template, see {@link #reserve}.
+     */
+    static final class Reservation {
+
+        private final int cpu;
+
+        private final int cores;
+
+        private final int memory;
+
+        /**
+         * Client each agent has been deducted from.
+         */
+        private final List<NodeCapacity> nodes = new ArrayList<>();
+
+        /**
+         * Number of agents when the capacity isn't modeled.
+         */
+        private int unmodeled;
+
+        private Reservation(int cpu, int cores, int memory) {
+            this.cpu = cpu;
+            this.cores = cores;
+            this.memory = memory;
+        }
+
+        private Reservation(int count) {
+            this(0, 0, 0);
+            this.unmodeled = count;
+        }
+
+        private int getCpu(NodeCapacity node) {
+            if (cores > 0 && node.cpuPerCore == 0) {
+                // Unknown core size: the whole client
+                return Integer.MAX_VALUE;
+            }
+            return cpu + cores * node.cpuPerCore;
+        }
+
+        /**
+         * @return the number of agents reserved
+         */
+        synchronized int getCount() {
+            return unmodeled + nodes.size();
+        }
+
+        /**
+         * Gives back the resources of the agents reserved last.
+         *
+         * @param count the number of agents not requested after all
+         */
+        synchronized void release(int count) {
+            for (int i = 0; i < count; i++) {
+                if (!nodes.isEmpty()) {
+                    NodeCapacity node = nodes.remove(nodes.size() - 1);
+                    node.release(getCpu(node), memory);
+                } else if (unmodeled > 0) {
+                    unmodeled--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Capacity of the Nomad clients of a datacenter and node class.
+     */
+    public static final class CapacitySummary {
+
+        private final String cloudName;
+
+        private final String datacenter;
+
+        private final String nodeClass;
+
+        private int nodes;
+
+        private int cpu;
+
+        private int freeCpu;
+
+        private int memory;
+
+        private int freeMemory;
+
+        CapacitySummary(String cloudName, String datacenter, String nodeClass) {
+            this.cloudName = cloudName;
+            this.datacenter = datacenter;
+            this.nodeClass = nodeClass;
+        }
+
+        private void add(NodeCapacity node) {
+            nodes++;
+            cpu += node.cpu;
+            memory += node.memory;
+            freeCpu += node.getFreeCpu();
+            freeMemory += node.getFreeMemory();
+        }
+
+        public String getCloudName() {
+            return cloudName;
+        }
+
+        public String getDatacenter() {
+            return datacenter;
+        }
+
+        /**
+         * @return the node class of the clients, or an empty string
+         */
+        public String getNodeClass() {
+            return nodeClass;
+        }
+
+        public int getNodes() {
+            return nodes;
+        }
+
+        /**
+         * @return the allocatable CPU, in MHz
+         */
+        public int getCpu() {
+            return cpu;
+        }
+
+        /**
+         * @return the CPU not used by any allocation, in MHz
+         */
+        public int getFreeCpu() {
+            return freeCpu;
+        }
+
+        /**
+         * @return the allocatable memory, in MB
+         */
+        public int getMemory() {
+            return memory;
+        }
+
+        /**
+         * @return the memory not used by any allocation, in MB
+         */
+        public int getFreeMemory() {
+            return freeMemory;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.JobListStub;
+import com.hashicorp.nomad.javasdk.EvaluationResponse;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Deregisters Nomad jobs in the background.
+ *
+ * Deregistrations are queued, persisted on disk so they survive restarts, and
+ * retried with an increasing delay until they succeed or the maximum number
+ * of attempts is reached. The queue is written in the background, so queuing
+ * a deregistration doesn't wait for the disk.
+ */
+@Extension
+public class NomadCleanupService extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadCleanupService.class.getName());
+
+    private static final long RECURRENCE_PERIOD = TimeUnit.SECONDS.toMillis(
+            Long.getLong(NomadCleanupService.class.getName() + ".recurrencePeriod", 30));
+
+    private static final int MAX_ATTEMPTS = Integer.getInteger(NomadCleanupService.class.getName() + ".maxAttempts", 20);
+
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(10);
+
+    private List<PendingCleanup> pending;
+
+    /**
+     * Whether a write of the queue has been scheduled and hasn't started yet.
+     */
+    private boolean savePending;
+
+    /**
+     * Held while writing the queue, so that the writes happen in the order of
+     * the modifications.
+     */
+    private final Object saveLock = new Object();
+
+    public NomadCleanupService() {
+        super("Nomad cleanup");
+    }
+
+    public static NomadCleanupService get() {
+        return ExtensionList.lookupSingleton(NomadCleanupService.class);
+    }
+
+    /**
+     * Queues the deregistration of all the Nomad jobs whose ID starts with the
+     * given prefix, and starts processing the queue.
+     *
+     * @param cloudName the name of the cloud the jobs have been started on
+     * @param jobPrefix the prefix of the IDs of the jobs to deregister
+     */
+    public void enqueue(@Nonnull String cloudName, @Nonnull String jobPrefix) {
+        synchronized (this) {
+            getPending().add(new PendingCleanup(cloudName, jobPrefix));
+        }
+        scheduleSave();
+        doRun();
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        List<PendingCleanup> todo;
+        synchronized (this) {
+            todo = new ArrayList<>(getPending());
+        }
+
+        long now = System.currentTimeMillis();
+        for (PendingCleanup cleanup : todo) {
+            if (cleanup.nextAttempt > now) {
+                continue;
+            }
+
+            boolean done;
+            try {
+                done = deregister(cleanup, listener);
+            } catch (IOException | NomadException e) {
+                LOGGER.log(Level.WARNING, String.format("Failed to deregister Nomad jobs %s* from cloud %s (attempt %d)",
+                        cleanup.jobPrefix, cleanup.cloudName, cleanup.attempts + 1), e);
+                done = false;
+            }
+
+            synchronized (this) {
+                cleanup.attempts++;
+                if (done) {
+                    getPending().remove(cleanup);
+                } else if (cleanup.attempts >= MAX_ATTEMPTS) {
+                    LOGGER.log(Level.SEVERE, "Giving up deregistering Nomad jobs {0}* from cloud {1} after {2} attempts. "
+                            + "There may be leftover resources on the Nomad cluster.",
+                            new Object[]{cleanup.jobPrefix, cleanup.cloudName, cleanup.attempts});
+                    getPending().remove(cleanup);
+                } else {
+                    long delay = TimeUnit.SECONDS.toMillis(10) << Math.min(cleanup.attempts, 10);
+                    cleanup.nextAttempt = System.currentTimeMillis() + Math.min(delay, MAX_RETRY_DELAY);
+                }
+            }
+            save();
+        }
+    }
+
+    /**
+     * @return true if there is nothing left to deregister
+     */
+    private boolean deregister(PendingCleanup cleanup, TaskListener listener) throws IOException, NomadException {
+        Cloud cloud = Jenkins.get().getCloud(cleanup.cloudName);
+        if (!(cloud instanceof NomadCloud)) {
+            LOGGER.log(Level.WARNING, "Cloud {0} no longer exists, cannot deregister jobs {1}*",
+                    new Object[]{cleanup.cloudName, cleanup.jobPrefix});
+            return true;
+        }
+
+        NomadApiClient client = ((NomadCloud) cloud).connect();
+        boolean deleted = true;
+        for (JobListStub job : client.getJobsApi().list(cleanup.jobPrefix).getValue()) {
+            LOGGER.log(Level.FINE, "Deregistering job {0} from cloud {1}",
+                    new Object[]{job.getId(), cleanup.cloudName});
+            EvaluationResponse response = client.getJobsApi().deregister(job.getId());
+            int status = response.getHttpResponse().getStatusLine().getStatusCode();
+            if (status != 200) {
+                LOGGER.log(Level.WARNING, "Failed to deregister job {0}: HTTP {1}",
+                        new Object[]{job.getId(), status});
+                deleted = false;
+                continue;
+            }
+            LOGGER.log(Level.FINE, "Deregistered {0} using evaluation ID {1}",
+                    new Object[]{job.getId(), response.getValue()});
+            listener.getLogger().printf("Deregistered Nomad job %s from cloud %s%n", job.getId(), cleanup.cloudName);
+        }
+        return deleted;
+    }
+
+    private List<PendingCleanup> getPending() {
+        if (pending == null) {
+            pending = load();
+        }
+        return pending;
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(new File(Jenkins.get().getRootDir(), NomadCleanupService.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<PendingCleanup> load() {
+        XmlFile file = getConfigFile();
+        if (file.exists()) {
+            try {
+                return new ArrayList<>((List<PendingCleanup>) file.read());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load pending Nomad cleanups from " + file, e);
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Writes the queue in the background. Several modifications happening
+     * before the write starts only lead to a single write.
+     */
+    private void scheduleSave() {
+        synchronized (this) {
+            if (savePending) {
+                return;
+            }
+            savePending = true;
+        }
+        Timer.get().submit(this::save);
+    }
+
+    private void save() {
+        XmlFile file = getConfigFile();
+        synchronized (saveLock) {
+            List<PendingCleanup> snapshot;
+            synchronized (this) {
+                savePending = false;
+                snapshot = new ArrayList<>(getPending());
+            }
+            try {
+                file.write(snapshot);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save pending Nomad cleanups to " + file, e);
+            }
+        }
+    }
+
+    private static class PendingCleanup {
+
+        private final String cloudName;
+
+        private final String jobPrefix;
+
+        private int attempts;
+
+        private long nextAttempt;
+
+        PendingCleanup(String cloudName, String jobPrefix) {
+            this.cloudName = cloudName;
+            this.jobPrefix = jobPrefix;
+        }
+    }
+}
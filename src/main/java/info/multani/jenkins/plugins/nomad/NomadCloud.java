@@ -26,9 +26,12 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -57,6 +60,8 @@ public class NomadCloud extends Cloud {
 
     public static final String JNLP_NAME = "jnlp";
 
+    private static final String AGENT_JAR_VERSION_VARIABLE = "version";
+
     /**
      * label for all jobs started by the plugin
      */
@@ -67,6 +72,19 @@ public class NomadCloud extends Cloud {
      */
     private static final int DEFAULT_RETENTION_TIMEOUT_MINUTES = 5;
 
+    /**
+     * Default bounds of the {@link NomadOperationExecutor} of the cloud.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_OPERATIONS = 10;
+
+    public static final int DEFAULT_MAX_QUEUED_OPERATIONS = 100;
+
+    /**
+     * Default entrypoint of the tasks pulling the images of the templates
+     * when pre-warming images.
+     */
+    public static final String DEFAULT_PREWARM_COMMAND = "/bin/sh -c \"exit 0\"";
+
     @Nonnull
     private List<NomadJobTemplate> templates = new ArrayList<>();
     private String serverUrl;
@@ -88,6 +106,54 @@ public class NomadCloud extends Cloud {
 
     private Map<String, String> labels;
 
+    private boolean prewarmImages;
+
+    /**
+     * Command of the pre-warming tasks, null for
+     * {@link #DEFAULT_PREWARM_COMMAND}, empty for the command of the images.
+     */
+    @CheckForNull
+    private String prewarmCommand;
+
+    private int imageLocalityWeight;
+
+    @CheckForNull
+    private String agentJarUrl;
+
+    private boolean rightSizing;
+
+    private int rightSizingMinCpu;
+
+    private int rightSizingMaxCpu;
+
+    private int rightSizingMinMemory;
+
+    private int rightSizingMaxMemory;
+
+    private List<String> registryMirrors;
+
+    private boolean planPlacement;
+
+    private boolean capacityAware;
+
+    private boolean spillOver;
+
+    private int launchRetries;
+
+    private int maxConcurrentOperations = DEFAULT_MAX_CONCURRENT_OPERATIONS;
+
+    private int maxQueuedOperations = DEFAULT_MAX_QUEUED_OPERATIONS;
+
+    private transient NomadOperationExecutor operationExecutor;
+
+    /**
+     * Whether the last provisioning attempt couldn't request any agent for
+     * lack of capacity on the Nomad clients.
+     */
+    private transient volatile boolean capacityExhausted;
+
+    private transient AtomicInteger nextRegistryMirror;
+
     private transient NomadApiClient client;
 
     @DataBoundConstructor
@@ -114,6 +180,22 @@ public class NomadCloud extends Cloud {
         this.containerCap = source.containerCap;
         this.retentionTimeout = source.retentionTimeout;
         this.connectTimeout = source.connectTimeout;
+        this.prewarmImages = source.prewarmImages;
+        this.prewarmCommand = source.prewarmCommand;
+        this.imageLocalityWeight = source.imageLocalityWeight;
+        this.agentJarUrl = source.agentJarUrl;
+        this.rightSizing = source.rightSizing;
+        this.rightSizingMinCpu = source.rightSizingMinCpu;
+        this.rightSizingMaxCpu = source.rightSizingMaxCpu;
+        this.rightSizingMinMemory = source.rightSizingMinMemory;
+        this.rightSizingMaxMemory = source.rightSizingMaxMemory;
+        this.registryMirrors = source.registryMirrors;
+        this.planPlacement = source.planPlacement;
+        this.capacityAware = source.capacityAware;
+        this.spillOver = source.spillOver;
+        this.launchRetries = source.launchRetries;
+        this.maxConcurrentOperations = source.maxConcurrentOperations;
+        this.maxQueuedOperations = source.maxQueuedOperations;
     }
 
     public int getRetentionTimeout() {
@@ -198,11 +280,33 @@ public class NomadCloud extends Cloud {
         return jenkinsUrl;
     }
 
+    /**
+     * Returns the URL the agents download the agent JAR from: either the
+     * configured mirror, or the Jenkins controller.
+     */
     @CheckForNull
     public String getSlaveUrl() {
+        if (agentJarUrl != null) {
+            String version = NomadAgentJar.getVersion();
+            return Macro.render(agentJarUrl, name -> AGENT_JAR_VERSION_VARIABLE.equals(name) ? version : null);
+        }
         return Jenkins.getInstance().getRootUrl() + "jnlpJars/slave.jar";
     }
 
+    /**
+     * URL of a mirror of the agent JAR, which may reference the version of
+     * the JAR as <code>${version}</code>.
+     */
+    @CheckForNull
+    public String getAgentJarUrl() {
+        return agentJarUrl;
+    }
+
+    @DataBoundSetter
+    public void setAgentJarUrl(String agentJarUrl) {
+        this.agentJarUrl = Util.fixEmptyAndTrim(agentJarUrl);
+    }
+
     /**
      * Returns Jenkins URL to be used by agents launched by this cloud. Always
      * ends with a trailing slash.
@@ -294,6 +398,273 @@ public class NomadCloud extends Cloud {
         this.connectTimeout = connectTimeout;
     }
 
+    /**
+     * Whether the images of the job templates are kept pulled on the Nomad
+     * clients.
+     *
+     * @see NomadImagePrewarmer
+     */
+    public boolean isPrewarmImages() {
+        return prewarmImages;
+    }
+
+    @DataBoundSetter
+    public void setPrewarmImages(boolean prewarmImages) {
+        this.prewarmImages = prewarmImages;
+    }
+
+    /**
+     * Entrypoint of the tasks pulling the images when pre-warming images, or
+     * an empty string to run the images with their own entrypoint and
+     * command.
+     */
+    @Nonnull
+    public String getPrewarmCommand() {
+        return prewarmCommand == null ? DEFAULT_PREWARM_COMMAND : prewarmCommand;
+    }
+
+    @DataBoundSetter
+    public void setPrewarmCommand(String prewarmCommand) {
+        this.prewarmCommand = prewarmCommand == null ? "" : prewarmCommand.trim();
+    }
+
+    /**
+     * Weight of the affinity for the Nomad clients which recently ran the
+     * images of an agent, between 0 (disabled) and 100.
+     *
+     * @see NomadImageLocality
+     */
+    public int getImageLocalityWeight() {
+        return imageLocalityWeight;
+    }
+
+    @DataBoundSetter
+    public void setImageLocalityWeight(int imageLocalityWeight) {
+        this.imageLocalityWeight = Math.max(0, Math.min(imageLocalityWeight, 100));
+    }
+
+    /**
+     * Whether the CPU and memory resources of the tasks are replaced by the
+     * recommendations computed from their past usage.
+     *
+     * @see NomadResourceUsage
+     */
+    public boolean isRightSizing() {
+        return rightSizing;
+    }
+
+    @DataBoundSetter
+    public void setRightSizing(boolean rightSizing) {
+        this.rightSizing = rightSizing;
+    }
+
+    /**
+     * Lower bound of the recommended CPU resources, in MHz, or 0 if unbounded.
+     */
+    public int getRightSizingMinCpu() {
+        return rightSizingMinCpu;
+    }
+
+    @DataBoundSetter
+    public void setRightSizingMinCpu(int rightSizingMinCpu) {
+        this.rightSizingMinCpu = Math.max(0, rightSizingMinCpu);
+    }
+
+    /**
+     * Upper bound of the recommended CPU resources, in MHz, or 0 if unbounded.
+     */
+    public int getRightSizingMaxCpu() {
+        return rightSizingMaxCpu;
+    }
+
+    @DataBoundSetter
+    public void setRightSizingMaxCpu(int rightSizingMaxCpu) {
+        this.rightSizingMaxCpu = Math.max(0, rightSizingMaxCpu);
+    }
+
+    /**
+     * Lower bound of the recommended memory resources, in MB, or 0 if
+     * unbounded.
+     */
+    public int getRightSizingMinMemory() {
+        return rightSizingMinMemory;
+    }
+
+    @DataBoundSetter
+    public void setRightSizingMinMemory(int rightSizingMinMemory) {
+        this.rightSizingMinMemory = Math.max(0, rightSizingMinMemory);
+    }
+
+    /**
+     * Upper bound of the recommended memory resources, in MB, or 0 if
+     * unbounded.
+     */
+    public int getRightSizingMaxMemory() {
+        return rightSizingMaxMemory;
+    }
+
+    @DataBoundSetter
+    public void setRightSizingMaxMemory(int rightSizingMaxMemory) {
+        this.rightSizingMaxMemory = Math.max(0, rightSizingMaxMemory);
+    }
+
+    /**
+     * Hosts of the Docker registry mirrors the images of the Docker Hub are
+     * pulled from, separated by commas.
+     */
+    public String getRegistryMirrors() {
+        return String.join(", ", getRegistryMirrorsList());
+    }
+
+    @Nonnull
+    public List<String> getRegistryMirrorsList() {
+        return registryMirrors == null ? Collections.emptyList() : registryMirrors;
+    }
+
+    @DataBoundSetter
+    public void setRegistryMirrors(String registryMirrors) {
+        this.registryMirrors = registryMirrors == null ? null : Arrays.stream(registryMirrors.split(","))
+                .map(String::trim)
+                .filter(e -> !e.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Whether the placement of the agents is checked with the plan endpoint of
+     * Nomad before they are provisioned.
+     *
+     * @see NomadPlacementPlanner
+     */
+    public boolean isPlanPlacement() {
+        return planPlacement;
+    }
+
+    @DataBoundSetter
+    public void setPlanPlacement(boolean planPlacement) {
+        this.planPlacement = planPlacement;
+    }
+
+    /**
+     * Whether the agents requested are capped by the capacity available on the
+     * Nomad clients.
+     *
+     * @see NomadCapacity
+     */
+    public boolean isCapacityAware() {
+        return capacityAware;
+    }
+
+    @DataBoundSetter
+    public void setCapacityAware(boolean capacityAware) {
+        this.capacityAware = capacityAware;
+    }
+
+    /**
+     * Whether the agents are spread over this cloud and the other clouds with
+     * this option enabled, according to their launch latency, error rate and
+     * capacity.
+     *
+     * @see NomadProvisioningStrategy
+     */
+    public boolean isSpillOver() {
+        return spillOver;
+    }
+
+    @DataBoundSetter
+    public void setSpillOver(boolean spillOver) {
+        this.spillOver = spillOver;
+    }
+
+    /**
+     * Number of times the launch of an agent whose job can't be placed is
+     * retried, with another template or with the same one.
+     */
+    public int getLaunchRetries() {
+        return launchRetries;
+    }
+
+    @DataBoundSetter
+    public void setLaunchRetries(int launchRetries) {
+        this.launchRetries = Math.max(0, launchRetries);
+    }
+
+    /**
+     * Maximum number of Nomad operations of this cloud running at the same
+     * time.
+     *
+     * @see NomadOperationExecutor
+     */
+    public int getMaxConcurrentOperations() {
+        // Not set by the configurations saved by previous versions
+        return maxConcurrentOperations <= 0 ? DEFAULT_MAX_CONCURRENT_OPERATIONS : maxConcurrentOperations;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentOperations(int maxConcurrentOperations) {
+        this.maxConcurrentOperations = Math.max(1, maxConcurrentOperations);
+    }
+
+    /**
+     * Maximum number of Nomad operations of this cloud waiting to run, beyond
+     * which new agents are not provisioned.
+     *
+     * @see NomadOperationExecutor
+     */
+    public int getMaxQueuedOperations() {
+        return maxQueuedOperations <= 0 ? DEFAULT_MAX_QUEUED_OPERATIONS : maxQueuedOperations;
+    }
+
+    @DataBoundSetter
+    public void setMaxQueuedOperations(int maxQueuedOperations) {
+        this.maxQueuedOperations = Math.max(1, maxQueuedOperations);
+    }
+
+    /**
+     * Returns the executor running the Nomad operations of this cloud in the
+     * background.
+     */
+    @Nonnull
+    public synchronized NomadOperationExecutor getOperationExecutor() {
+        if (operationExecutor == null
+                || !operationExecutor.hasBounds(getMaxConcurrentOperations(), getMaxQueuedOperations())) {
+            if (operationExecutor != null) {
+                operationExecutor.shutdown();
+            }
+            operationExecutor = new NomadOperationExecutor(name, getMaxConcurrentOperations(), getMaxQueuedOperations());
+        }
+        return operationExecutor;
+    }
+
+    /**
+     * @return true if the last provisioning attempt couldn't request any agent
+     * because the Nomad clients had no capacity left for them
+     */
+    public boolean isCapacityExhausted() {
+        return capacityExhausted;
+    }
+
+    /**
+     * Returns the registry mirror the next agent pulls its images from: each
+     * mirror in turn.
+     *
+     * @return the host of the mirror, or null if there is no mirror
+     */
+    @CheckForNull
+    String nextRegistryMirror() {
+        List<String> mirrors = getRegistryMirrorsList();
+        if (mirrors.isEmpty()) {
+            return null;
+        }
+        AtomicInteger next;
+        synchronized (this) {
+            if (nextRegistryMirror == null) {
+                nextRegistryMirror = new AtomicInteger();
+            }
+            next = nextRegistryMirror;
+        }
+        return mirrors.get(Math.floorMod(next.getAndIncrement(), mirrors.size()));
+    }
+
     /**
      * Connects to Nomad.
      *
@@ -308,25 +679,76 @@ public class NomadCloud extends Cloud {
     @Override
     public synchronized Collection<NodeProvisioner.PlannedNode> provision(@CheckForNull final Label label, final int excessWorkload) {
         List<NodeProvisioner.PlannedNode> toProvision = new ArrayList<>();
+        boolean exhausted = false;
 
         try {
             Set<String> allInProvisioning = InProvisioning.getAllInProvisioning(label);
             LOGGER.log(Level.FINE, "In provisioning: {0}", allInProvisioning);
-            int toBeProvisioned = Math.max(0, excessWorkload - allInProvisioning.size());
-            LOGGER.log(Level.INFO, "Excess workload after pending Nomad nodes: {0}", toBeProvisioned);
 
             for (NomadJobTemplate t : getTemplatesFor(label)) {
                 LOGGER.log(Level.INFO, "Template: {0}: {1}", new Object[]{label, t.getDisplayName()});
+                if (planPlacement && !NomadPlacementPlanner.canPlace(this, t)) {
+                    // Try the next matching template, or wait for some capacity
+                    continue;
+                }
+                // Each agent runs as many builds as it has executors
+                int executors = t.getNumExecutors();
+                int workload = Math.max(0, excessWorkload - allInProvisioning.size() * executors);
+                int toBeProvisioned = (workload + executors - 1) / executors;
+                LOGGER.log(Level.INFO, "Excess workload after pending Nomad nodes: {0} ({1} agent(s) of {2} executor(s))",
+                        new Object[]{workload, toBeProvisioned, executors});
+                int room = getOperationExecutor().getRemainingCapacity();
+                if (room < toBeProvisioned) {
+                    // Hold back until Nomad catches up with the agents
+                    // already requested
+                    LOGGER.log(Level.INFO, "Only {0} more Nomad operation(s) can be queued, provisioning {0} agent(s) instead of {1}",
+                            new Object[]{room, toBeProvisioned});
+                    toBeProvisioned = room;
+                }
+                NomadCapacity.Reservation reservation = null;
+                if (capacityAware && toBeProvisioned > 0) {
+                    reservation = NomadCapacity.get().reserve(this, t, toBeProvisioned);
+                    int placeable = reservation.getCount();
+                    if (placeable < toBeProvisioned) {
+                        LOGGER.log(Level.INFO, "Only {0} agent(s) of template \"{1}\" fit in the capacity of the Nomad clients",
+                                new Object[]{placeable, t.getDisplayName()});
+                    }
+                    if (placeable == 0) {
+                        // Try the next matching template, or let another cloud
+                        // provision the agents
+                        exhausted = true;
+                        continue;
+                    }
+                    toBeProvisioned = placeable;
+                }
+                boolean rejected = false;
+                int planned = 0;
                 for (int i = 1; i <= toBeProvisioned; i++) {
                     if (!addProvisionedSlave(t, label)) {
                         break;
                     }
-                    toProvision.add(PlannedNodeBuilderFactory.createInstance().cloud(this).template(t).label(label).build());
+                    try {
+                        toProvision.add(PlannedNodeBuilderFactory.createInstance().cloud(this).template(t).label(label)
+                                .numExecutors(executors).build());
+                        planned++;
+                    } catch (RejectedExecutionException e) {
+                        // Back-pressure: the operations queue filled up in the
+                        // meantime, the rest is requested again later
+                        LOGGER.log(Level.WARNING, "Too many Nomad operations queued, provisioning {0} agent(s) of template \"{1}\" instead of {2}",
+                                new Object[]{i - 1, t.getDisplayName(), toBeProvisioned});
+                        rejected = true;
+                        break;
+                    }
+                }
+                if (reservation != null && planned < toBeProvisioned) {
+                    // Give back the capacity of the agents not requested
+                    reservation.release(toBeProvisioned - planned);
                 }
                 LOGGER.log(Level.FINEST, "Planned Nomad agents for template \"{0}\": {1}",
                         new Object[]{t.getDisplayName(), toProvision.size()});
-                if (toProvision.size() > 0) {
-                    // Already found a matching template
+                if (rejected || toProvision.size() > 0) {
+                    // Already found a matching template, or the other
+                    // templates would be rejected as well
                     break;
                 }
             }
@@ -344,6 +766,7 @@ public class NomadCloud extends Cloud {
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Failed to count the # of live instances on Nomad", e);
         }
+        capacityExhausted = exhausted && toProvision.isEmpty();
         return toProvision;
     }
 
@@ -387,6 +810,71 @@ public class NomadCloud extends Cloud {
         return true;
     }
 
+    /**
+     * Starts agents for the given template right away, without waiting for
+     * the node provisioner to request them.
+     *
+     * The agents are launched in the background, and are added to Jenkins as
+     * any other provisioned agent. The agents of the template already running
+     * or in provisioning count towards the requested number of agents.
+     *
+     * @param template the template to start agents from
+     * @param count the number of agents to start
+     * @return the number of agents actually started
+     */
+    public int preProvision(@Nonnull NomadJobTemplate template, int count) {
+        int existing = countAgents(template) + NomadPreProvisioning.count(template);
+        int toProvision = Math.max(0, Math.min(count, template.getInstanceCap()) - existing);
+        for (int i = 0; i < toProvision; i++) {
+            try {
+                if (!addProvisionedSlave(template, null)) {
+                    return i;
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, String.format("Failed to check the agents of template %s", template.getName()), e);
+                return i;
+            }
+            // Reported as in provisioning until the agent is added to Jenkins
+            String key = NomadPreProvisioning.started(template);
+            try {
+                getOperationExecutor().submit(() -> {
+                    try {
+                        Node node = new ProvisioningCallback(this, template).call();
+                        LOGGER.log(Level.INFO, "Pre-provisioning Nomad agent {0} from template {1}",
+                                new Object[]{node.getNodeName(), template.getName()});
+                        Jenkins.get().addNode(node);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, String.format("Failed to pre-provision an agent from template %s",
+                                template.getName()), e);
+                    } finally {
+                        NomadPreProvisioning.done(key);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                NomadPreProvisioning.done(key);
+                LOGGER.log(Level.WARNING, "Too many Nomad operations queued, pre-provisioning {0} agent(s) of template {1} instead of {2}",
+                        new Object[]{i, template.getName(), toProvision});
+                return i;
+            }
+        }
+        return toProvision;
+    }
+
+    /**
+     * @return the number of agents of this cloud created from a template
+     */
+    private int countAgents(NomadJobTemplate template) {
+        int agents = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof NomadSlave
+                    && name.equals(((NomadSlave) node).getCloudName())
+                    && template.getName().equals(((NomadSlave) node).getTemplateName())) {
+                agents++;
+            }
+        }
+        return agents;
+    }
+
     @Override
     public boolean canProvision(@CheckForNull Label label) {
         return getTemplate(label) != null;
@@ -444,6 +932,7 @@ public class NomadCloud extends Cloud {
      */
     public void addDynamicTemplate(NomadJobTemplate t) {
         NomadJobTemplateMap.get().addTemplate(this, t);
+        NomadImagePrewarmer.get().templateUsed(this, t);
     }
 
     /**
@@ -455,6 +944,30 @@ public class NomadCloud extends Cloud {
         NomadJobTemplateMap.get().removeTemplate(this, t);
     }
 
+    /**
+     * Get or add a dynamic job template shared by all the callers using the
+     * same key.
+     *
+     * @param key the sharing key of the template
+     * @param t the template to add if none is registered for this key
+     * @return the template shared under this key
+     */
+    public NomadJobTemplate acquireSharedDynamicTemplate(String key, NomadJobTemplate t) {
+        NomadJobTemplate shared = NomadJobTemplateMap.get().acquireSharedTemplate(this, key, t);
+        NomadImagePrewarmer.get().templateUsed(this, shared);
+        return shared;
+    }
+
+    /**
+     * Release a shared dynamic job template.
+     *
+     * @param key the sharing key of the template
+     * @return true if the template has been removed
+     */
+    public boolean releaseSharedDynamicTemplate(String key) {
+        return NomadJobTemplateMap.get().releaseSharedTemplate(this, key);
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<Cloud> {
 
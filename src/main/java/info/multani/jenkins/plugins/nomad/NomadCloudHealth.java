@@ -0,0 +1,121 @@
+package info.multani.jenkins.plugins.nomad;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * Tracks how well each cloud launches its agents, to weight the clouds when
+ * spilling provisioning over several of them.
+ *
+ * The launch latency and the launch error rate are exponentially weighted
+ * moving averages over the recent launches, kept in memory only.
+ *
+ * @see NomadProvisioningStrategy
+ */
+final class NomadCloudHealth {
+
+    /**
+     * Weight of the last launch in the moving averages.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Launch latency at which the weight of a cloud is halved.
+     */
+    private static final long REFERENCE_LATENCY = TimeUnit.SECONDS.toMillis(
+            Long.getLong(NomadCloudHealth.class.getName() + ".referenceLatency", 60));
+
+    /**
+     * Weight left to a cloud whose launches all fail, so that it gets a
+     * launch from time to time and its recovery is noticed.
+     */
+    private static final double MIN_WEIGHT = 0.05;
+
+    /**
+     * Launch statistics, by cloud name.
+     */
+    private static final Map<String, Health> HEALTH = new ConcurrentHashMap<>();
+
+    private NomadCloudHealth() {
+    }
+
+    /**
+     * Records that an agent has been launched.
+     *
+     * @param cloud the cloud of the agent
+     * @param latency the time between the request of the agent and its
+     * connection, in milliseconds
+     */
+    static void launchSucceeded(@Nonnull NomadCloud cloud, long latency) {
+        get(cloud).record(false, latency);
+    }
+
+    /**
+     * Records that an agent failed to launch.
+     *
+     * @param cloud the cloud of the agent
+     */
+    static void launchFailed(@Nonnull NomadCloud cloud) {
+        get(cloud).record(true, -1);
+    }
+
+    /**
+     * Returns the weight of a cloud: the higher the weight, the bigger the
+     * share of the agents the cloud provisions.
+     *
+     * The weight goes down as the launch latency and the error rate go up,
+     * and as the free capacity of the cloud goes down. A cloud whose capacity
+     * is exhausted has a weight of 0.
+     *
+     * @param cloud the cloud to weight
+     * @return the weight of the cloud, between 0 and 1
+     */
+    static double getWeight(@Nonnull NomadCloud cloud) {
+        if (cloud.isCapacityExhausted()) {
+            return 0;
+        }
+        Health health = get(cloud);
+        double weight;
+        synchronized (health) {
+            weight = (1 - health.errorRate) / (1 + health.latency / REFERENCE_LATENCY);
+        }
+        if (cloud.isCapacityAware()) {
+            weight *= NomadCapacity.get().getFreeShare(cloud);
+        }
+        return Math.max(MIN_WEIGHT, weight);
+    }
+
+    private static Health get(NomadCloud cloud) {
+        return HEALTH.computeIfAbsent(cloud.name, k -> new Health());
+    }
+
+    private static final class Health {
+
+        /**
+         * Launch latency, in milliseconds
+         */
+        private double latency;
+
+        /**
+         * Share of failed launches, between 0 and 1
+         */
+        private double errorRate;
+
+        private boolean launched;
+
+        synchronized void record(boolean failed, long latency) {
+            if (!launched) {
+                errorRate = failed ? 1 : 0;
+                this.latency = Math.max(0, latency);
+                launched = true;
+                return;
+            }
+            errorRate += SMOOTHING * ((failed ? 1 : 0) - errorRate);
+            if (latency >= 0) {
+                this.latency += SMOOTHING * (latency - this.latency);
+            }
+        }
+    }
+}
@@ -2,9 +2,11 @@ package info.multani.jenkins.plugins.nomad;
 
 import hudson.model.Executor;
 import hudson.model.Queue;
+import hudson.model.Run;
 import hudson.slaves.AbstractCloudComputer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
 
 public class NomadComputer extends AbstractCloudComputer<NomadSlave> {
 
@@ -18,11 +20,30 @@ public class NomadComputer extends AbstractCloudComputer<NomadSlave> {
     public void taskAccepted(Executor executor, Queue.Task task) {
         super.taskAccepted(executor, task);
         LOGGER.fine("Computer " + this + " taskAccepted");
+
+        NomadSlave node = getNode();
+        if (node != null) {
+            NomadJobTemplate template = node.getTemplate();
+            if (template != null && template.isStickyNode()) {
+                try {
+                    NomadJobLocality.record(node.getNomadCloud(), task, node.getNomadNodeId());
+                } catch (IllegalStateException e) {
+                    // The cloud has been removed: nothing to stick to anymore
+                    LOGGER.log(Level.FINE, "Not recording the locality of {0}: {1}",
+                            new Object[]{task.getName(), e.getMessage()});
+                }
+            }
+            Run<?, ?> run = getRun(executor);
+            if (run != null) {
+                NomadUsageAction.agentAccepted(run, node);
+            }
+        }
     }
 
     @Override
     public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
         LOGGER.log(Level.FINE, "Computer " + this + " taskCompleted");
+        released(executor);
 
         // May take the agent offline and remove it, in which case getNode()
         // above would return null and we'd not find our DockerSlave anymore.
@@ -31,10 +52,24 @@ public class NomadComputer extends AbstractCloudComputer<NomadSlave> {
 
     @Override
     public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        released(executor);
         super.taskCompletedWithProblems(executor, task, durationMS, problems);
         LOGGER.log(Level.FINE, "Computer " + this + " taskCompletedWithProblems");
     }
 
+    private void released(Executor executor) {
+        Run<?, ?> run = getRun(executor);
+        if (run != null) {
+            NomadUsageAction.agentReleased(run, getName());
+        }
+    }
+
+    @CheckForNull
+    private static Run<?, ?> getRun(Executor executor) {
+        Queue.Executable executable = executor.getCurrentExecutable();
+        return executable == null ? null : NomadUsageAction.getRun(executable);
+    }
+
     @Override
     public String toString() {
         return String.format("NomadComputer name: %s slave: %s", getName(), getNode());
@@ -0,0 +1,166 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * Remembers which Nomad clients recently ran each Docker image, so agents can
+ * be placed where their images are likely to be already pulled.
+ *
+ * The history is built from the allocations observed while launching agents,
+ * and is kept in memory only. The images whose clients have all expired are
+ * forgotten, and only the most recently used images are remembered. Images are remembered by their name in the
+ * templates, without the registry mirror they have been pulled from.
+ */
+final class NomadImageLocality {
+
+    /**
+     * Maximum number of clients remembered per image.
+     */
+    private static final int MAX_NODES = Integer.getInteger(NomadImageLocality.class.getName() + ".maxNodes", 10);
+
+    /**
+     * Maximum number of images remembered per cloud.
+     */
+    private static final int MAX_IMAGES = Integer.getInteger(NomadImageLocality.class.getName() + ".maxImages", 500);
+
+    /**
+     * Delay after which a client is no longer expected to have an image.
+     */
+    private static final long EXPIRATION = TimeUnit.HOURS.toMillis(
+            Long.getLong(NomadImageLocality.class.getName() + ".expiration", 6));
+
+    private static final String NODE_ID_TARGET = "${node.unique.id}";
+
+    /**
+     * Clients which ran an image, by cloud name, then by image. The clients are
+     * ordered from the least to the most recently used.
+     */
+    private static final Map<String, Map<String, LinkedHashMap<String, Long>>> NODES = new ConcurrentHashMap<>();
+
+    private NomadImageLocality() {
+    }
+
+    /**
+     * Records the images of a job as being pulled on a client.
+     *
+     * @param cloud the cloud the job has been started on
+     * @param job the job which has been placed
+     * @param nodeId the ID of the client the job has been placed on
+     */
+    static void record(@Nonnull NomadCloud cloud, @Nonnull Job job, String nodeId) {
+        if (nodeId == null || job.getTaskGroups() == null) {
+            return;
+        }
+        Map<String, LinkedHashMap<String, Long>> images = NODES.computeIfAbsent(cloud.name, k -> new ConcurrentHashMap<>());
+        long now = System.currentTimeMillis();
+        for (TaskGroup taskGroup : job.getTaskGroups()) {
+            for (Task task : taskGroup.getTasks()) {
+                Object image = task.getConfig() == null ? null : task.getConfig().get("image");
+                if (!(image instanceof String)) {
+                    continue;
+                }
+                LinkedHashMap<String, Long> nodes = images.computeIfAbsent(getKey(cloud, (String) image),
+                        k -> new LinkedHashMap<>());
+                synchronized (nodes) {
+                    nodes.remove(nodeId);
+                    nodes.put(nodeId, now);
+                    while (nodes.size() > MAX_NODES) {
+                        nodes.remove(nodes.keySet().iterator().next());
+                    }
+                }
+            }
+        }
+        forgetImages(images, now);
+    }
+
+    /**
+     * Forgets the images whose clients have all expired, then the least
+     * recently used images above {@link #MAX_IMAGES}.
+     */
+    private static void forgetImages(Map<String, LinkedHashMap<String, Long>> images, long now) {
+        long expiration = now - EXPIRATION;
+        Map<String, Long> lastUsed = new HashMap<>();
+        for (Iterator<Map.Entry<String, LinkedHashMap<String, Long>>> it = images.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, LinkedHashMap<String, Long>> entry = it.next();
+            LinkedHashMap<String, Long> nodes = entry.getValue();
+            synchronized (nodes) {
+                nodes.values().removeIf(lastSeen -> lastSeen < expiration);
+                if (nodes.isEmpty()) {
+                    it.remove();
+                } else {
+                    // The clients are ordered by use: the last one is the
+                    // most recent
+                    long last = 0;
+                    for (long lastSeen : nodes.values()) {
+                        last = lastSeen;
+                    }
+                    lastUsed.put(entry.getKey(), last);
+                }
+            }
+        }
+        if (lastUsed.size() <= MAX_IMAGES) {
+            return;
+        }
+        lastUsed.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .limit(lastUsed.size() - MAX_IMAGES)
+                .forEach(e -> images.remove(e.getKey()));
+    }
+
+    /**
+     * Returns the clients which recently ran an image.
+     *
+     * @param cloud the cloud to look for clients in
+     * @param image the Docker image
+     * @return the IDs of the clients, possibly empty
+     */
+    @Nonnull
+    static List<String> getNodes(@Nonnull NomadCloud cloud, String image) {
+        Map<String, LinkedHashMap<String, Long>> images = NODES.get(cloud.name);
+        LinkedHashMap<String, Long> nodes = images == null ? null : images.get(getKey(cloud, image));
+        if (nodes == null) {
+            return Collections.emptyList();
+        }
+        long expiration = System.currentTimeMillis() - EXPIRATION;
+        synchronized (nodes) {
+            nodes.values().removeIf(lastSeen -> lastSeen < expiration);
+            return new ArrayList<>(nodes.keySet());
+        }
+    }
+
+    private static String getKey(NomadCloud cloud, String image) {
+        return CompiledJobTemplate.withoutRegistryMirror(image, cloud.getRegistryMirrorsList());
+    }
+
+    /**
+     * Adds to a task group an affinity for the clients which recently ran the
+     * image of its tasks.
+     *
+     * @param cloud the cloud the task group is going to be started on
+     * @param taskGroup the task group to update
+     * @param image the Docker image of the task group
+     */
+    static void addAffinity(@Nonnull NomadCloud cloud, @Nonnull TaskGroup taskGroup, String image) {
+        int weight = cloud.getImageLocalityWeight();
+        if (weight <= 0) {
+            return;
+        }
+        List<String> nodes = getNodes(cloud, image);
+        if (nodes.isEmpty()) {
+            return;
+        }
+        CompiledJobTemplate.addAffinity(taskGroup, NODE_ID_TARGET, "set_contains_any", String.join(",", nodes), weight);
+    }
+}
@@ -0,0 +1,339 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.RestartPolicy;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import info.multani.jenkins.plugins.nomad.model.Auth;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps the Docker images of the job templates pulled on the Nomad clients.
+ *
+ * For each cloud with {@link NomadCloud#isPrewarmImages()} enabled, a
+ * low-priority <code>sysbatch</code> job pulls the images of the static
+ * templates and of the recently used dynamic templates on every eligible
+ * client. The job is registered again when the set of images changes, and
+ * periodically so the images pulled by new clients, or evicted by the Docker
+ * garbage collector, are pulled again.
+ */
+@Extension
+public class NomadImagePrewarmer extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadImagePrewarmer.class.getName());
+
+    private static final long RECURRENCE_PERIOD = TimeUnit.MINUTES.toMillis(
+            Long.getLong(NomadImagePrewarmer.class.getName() + ".recurrencePeriod", 5));
+
+    /**
+     * Delay after which the pre-warm job is registered again, even if the set
+     * of images didn't change.
+     */
+    private static final long REFRESH_PERIOD = TimeUnit.MINUTES.toMillis(
+            Long.getLong(NomadImagePrewarmer.class.getName() + ".refreshPeriod", 60));
+
+    /**
+     * Delay after which the images of a dynamic template which hasn't been
+     * used are no longer pre-warmed.
+     */
+    private static final long RECENT_IMAGE_RETENTION = TimeUnit.HOURS.toMillis(
+            Long.getLong(NomadImagePrewarmer.class.getName() + ".recentImageRetention", 24));
+
+    static final String JOB_PREFIX = "jenkins-prewarm-";
+
+    static final int JOB_PRIORITY = 10;
+
+    private static final String IMAGES_HASH_META = "jenkins-images-hash";
+
+    private static final String REFRESHED_META = "jenkins-refreshed";
+
+    /**
+     * Images of the recently used dynamic templates, indexed by cloud name,
+     * then by image.
+     */
+    private final Map<String, Map<String, RecentImage>> recentImages = new ConcurrentHashMap<>();
+
+    /**
+     * Last pre-warm job registered, indexed by cloud name.
+     */
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    /**
+     * Clouds whose pre-warm job has been looked up in Nomad since Jenkins
+     * started.
+     */
+    private final Set<String> reconciled = ConcurrentHashMap.newKeySet();
+
+    public NomadImagePrewarmer() {
+        super("Nomad image pre-warming");
+    }
+
+    public static NomadImagePrewarmer get() {
+        return ExtensionList.lookupSingleton(NomadImagePrewarmer.class);
+    }
+
+    /**
+     * Records the images of a dynamic template, so they get pre-warmed for a
+     * while.
+     *
+     * @param cloud the cloud the template has been added to
+     * @param template the dynamic template
+     */
+    public void templateUsed(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template) {
+        if (!cloud.isPrewarmImages()) {
+            return;
+        }
+        Map<String, RecentImage> images = recentImages.computeIfAbsent(cloud.name, k -> new ConcurrentHashMap<>());
+        long now = System.currentTimeMillis();
+        for (TaskTemplate task : getTasks(template)) {
+            String image = NomadJobTemplateBuilder.substituteEnv(task.getImage());
+            if (image != null && !image.isEmpty()) {
+                images.put(image, new RecentImage(task.getAuth(), now));
+            }
+        }
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (!(cloud instanceof NomadCloud)) {
+                continue;
+            }
+            NomadCloud nomadCloud = (NomadCloud) cloud;
+            try {
+                if (nomadCloud.isPrewarmImages()) {
+                    if (!reconciled.contains(nomadCloud.name)) {
+                        reconcile(nomadCloud);
+                        reconciled.add(nomadCloud.name);
+                    }
+                    prewarm(nomadCloud, listener);
+                } else if (registrations.remove(nomadCloud.name) != null) {
+                    deregister(nomadCloud, listener);
+                }
+            } catch (IOException | NomadException e) {
+                LOGGER.log(Level.WARNING, String.format("Failed to update the image pre-warming job of cloud %s",
+                        nomadCloud.name), e);
+            }
+        }
+    }
+
+    private void prewarm(NomadCloud cloud, TaskListener listener) throws IOException, NomadException {
+        Map<String, Auth> images = getImages(cloud);
+        if (images.isEmpty()) {
+            if (registrations.remove(cloud.name) != null) {
+                deregister(cloud, listener);
+            }
+            return;
+        }
+
+        // The command is part of the hash, so that changing it updates the job
+        String hash = Util.getDigestOf(cloud.getPrewarmCommand() + "\n" + String.join("\n", images.keySet()));
+        long now = System.currentTimeMillis();
+        Registration last = registrations.get(cloud.name);
+        if (last != null && last.hash.equals(hash) && now - last.timestamp < REFRESH_PERIOD) {
+            return;
+        }
+
+        Job job = buildJob(cloud, images, hash, now);
+        cloud.connect().getJobsApi().register(job);
+        registrations.put(cloud.name, new Registration(hash, now));
+        LOGGER.log(Level.INFO, "Registered image pre-warming job {0} for {1} image(s)",
+                new Object[]{job.getId(), images.size()});
+        listener.getLogger().printf("Registered Nomad job %s pre-warming %s%n", job.getId(), images.keySet());
+    }
+
+    /**
+     * Picks up the pre-warm job of a cloud registered before Jenkins
+     * restarted: it is only registered again if its images changed or it is
+     * due for a refresh.
+     */
+    private void reconcile(NomadCloud cloud) throws IOException, NomadException {
+        String jobId = getJobId(cloud);
+        NomadApiClient client = cloud.connect();
+        if (client.getJobsApi().list(jobId).getValue().stream().noneMatch(j -> jobId.equals(j.getId()))) {
+            return;
+        }
+        Job job = client.getJobsApi().info(jobId).getValue();
+        Map<String, String> meta = job == null ? null : job.getMeta();
+        if (meta == null || meta.get(IMAGES_HASH_META) == null) {
+            return;
+        }
+        try {
+            registrations.putIfAbsent(cloud.name,
+                    new Registration(meta.get(IMAGES_HASH_META), Long.parseLong(meta.get(REFRESHED_META))));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.FINE, "Ignoring the refresh time of pre-warm job {0}: {1}",
+                    new Object[]{jobId, meta.get(REFRESHED_META)});
+        }
+    }
+
+    /**
+     * Returns the ID of the pre-warm job of a cloud. The name of the cloud is
+     * free-form: it is reduced to the characters safe in a job ID, with a
+     * digest of the name if some characters had to be replaced.
+     */
+    static String getJobId(NomadCloud cloud) {
+        String name = cloud.name.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9_-]+", "-");
+        if (!name.equals(cloud.name)) {
+            name += "-" + Util.getDigestOf(cloud.name).substring(0, 8);
+        }
+        return JOB_PREFIX + name;
+    }
+
+    private void deregister(NomadCloud cloud, TaskListener listener) throws IOException, NomadException {
+        String jobId = getJobId(cloud);
+        NomadApiClient client = cloud.connect();
+        if (client.getJobsApi().list(jobId).getValue().stream().anyMatch(j -> jobId.equals(j.getId()))) {
+            client.getJobsApi().deregister(jobId);
+            LOGGER.log(Level.INFO, "Deregistered image pre-warming job {0}", jobId);
+            listener.getLogger().printf("Deregistered Nomad job %s%n", jobId);
+        }
+    }
+
+    /**
+     * Returns the images to pre-warm on a cloud, as pulled by the agents,
+     * along with the credentials needed to pull them.
+     */
+    @Nonnull
+    Map<String, Auth> getImages(@Nonnull NomadCloud cloud) {
+        Map<String, Auth> images = new TreeMap<>();
+        for (NomadJobTemplate template : cloud.getTemplates()) {
+            for (TaskTemplate task : getTasks(template)) {
+                String image = NomadJobTemplateBuilder.substituteEnv(task.getImage());
+                if (image != null && !image.isEmpty()) {
+                    images.putIfAbsent(image, task.getAuth());
+                }
+            }
+        }
+
+        Map<String, RecentImage> recent = recentImages.get(cloud.name);
+        if (recent != null) {
+            long expiration = System.currentTimeMillis() - RECENT_IMAGE_RETENTION;
+            for (Iterator<Map.Entry<String, RecentImage>> it = recent.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, RecentImage> entry = it.next();
+                if (entry.getValue().lastUsed < expiration) {
+                    it.remove();
+                } else {
+                    images.putIfAbsent(entry.getKey(), entry.getValue().auth);
+                }
+            }
+        }
+
+        // The agents pull the Docker Hub images from the registry mirrors, in
+        // turn: warm the images under the names of all the mirrors
+        List<String> mirrors = cloud.getRegistryMirrorsList();
+        if (mirrors.isEmpty()) {
+            return images;
+        }
+        Map<String, Auth> mirrored = new TreeMap<>();
+        images.forEach((image, auth) -> {
+            for (String mirror : mirrors) {
+                mirrored.putIfAbsent(CompiledJobTemplate.withRegistryMirror(image, mirror), auth);
+            }
+        });
+        return mirrored;
+    }
+
+    private static List<TaskTemplate> getTasks(NomadJobTemplate template) {
+        List<TaskTemplate> tasks = template.getTaskGroups();
+        return tasks == null || tasks.isEmpty() ? Arrays.asList(TaskTemplate.defaultTask()) : tasks;
+    }
+
+    private static Job buildJob(NomadCloud cloud, Map<String, Auth> images, String hash, long now) {
+        TaskGroup taskGroup = new TaskGroup();
+        taskGroup.setName("prewarm");
+        taskGroup.setRestartPolicy(new RestartPolicy()
+                .setMode("fail")
+                .setAttempts(0));
+        List<String> entrypoint = Arrays.asList(Util.tokenize(cloud.getPrewarmCommand()));
+
+        int i = 0;
+        for (Map.Entry<String, Auth> image : images.entrySet()) {
+            Task task = new Task();
+            task.setName("image-" + i++);
+            task.setDriver("docker");
+            task.addConfig("image", image.getKey());
+            // Pulling the image is all we need: exit as soon as the container
+            // starts. The image is pulled even if the command fails, as with
+            // images without a shell.
+            if (!entrypoint.isEmpty()) {
+                task.addConfig("entrypoint", entrypoint);
+            }
+            Map<String, Object> auth = TaskTemplate.getAuthConfig(image.getValue());
+            if (auth != null) {
+                task.addConfig("auth", auth);
+            }
+            task.setResources(new Resources()
+                    .setCpu(20)
+                    .setMemoryMb(16));
+            taskGroup.addTasks(task);
+        }
+
+        Map<String, String> meta = new HashMap<>(cloud.getLabels());
+        meta.put(IMAGES_HASH_META, hash);
+        meta.put(REFRESHED_META, String.valueOf(now));
+
+        Job job = new Job();
+        job.setId(getJobId(cloud));
+        job.setName(getJobId(cloud));
+        job.setType("sysbatch");
+        job.setPriority(JOB_PRIORITY);
+        job.setRegion(cloud.getRegion());
+        job.setDatacenters(cloud.getDatacentersList());
+        job.setMeta(meta);
+        job.addTaskGroups(taskGroup);
+        return job;
+    }
+
+    private static class RecentImage {
+
+        private final Auth auth;
+
+        private final long lastUsed;
+
+        RecentImage(Auth auth, long lastUsed) {
+            this.auth = auth;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static class Registration {
+
+        private final String hash;
+
+        private final long timestamp;
+
+        Registration(String hash, long timestamp) {
+            this.hash = hash;
+            this.timestamp = timestamp;
+        }
+    }
+}
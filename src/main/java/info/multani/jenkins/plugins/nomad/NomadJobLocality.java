@@ -0,0 +1,100 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Remembers which Nomad client last ran each Jenkins job, so the next agents
+ * for this job can be placed on the same client and find its workspace and
+ * caches there.
+ *
+ * The history is kept in memory only.
+ */
+final class NomadJobLocality {
+
+    /**
+     * Maximum number of jobs remembered per cloud.
+     */
+    private static final int MAX_JOBS = Integer.getInteger(NomadJobLocality.class.getName() + ".maxJobs", 1000);
+
+    /**
+     * Clients which last ran each job, by cloud name, then by job full name.
+     */
+    private static final Map<String, Map<String, String>> NODES = new ConcurrentHashMap<>();
+
+    private NomadJobLocality() {
+    }
+
+    /**
+     * Records that a task is running on a client.
+     *
+     * @param cloud the cloud the agent running the task belongs to
+     * @param task the task which has been accepted by the agent
+     * @param nodeId the ID of the Nomad client running the agent
+     */
+    static void record(@Nonnull NomadCloud cloud, @Nonnull Queue.Task task, @CheckForNull String nodeId) {
+        if (nodeId == null) {
+            return;
+        }
+        Map<String, String> jobs = NODES.computeIfAbsent(cloud.name, k -> new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_JOBS;
+            }
+        });
+        synchronized (jobs) {
+            jobs.put(getJobName(task), nodeId);
+        }
+    }
+
+    /**
+     * Returns the clients which last ran the jobs waiting in the queue for an
+     * agent.
+     *
+     * @param cloud the cloud the agent belongs to
+     * @param agent the agent being launched
+     * @return the IDs of the Nomad clients, possibly empty
+     */
+    @Nonnull
+    static Set<String> getPreferredNodes(@Nonnull NomadCloud cloud, @Nonnull Node agent) {
+        Set<String> nodes = new LinkedHashSet<>();
+        Map<String, String> jobs = NODES.get(cloud.name);
+        if (jobs == null) {
+            return nodes;
+        }
+        for (Queue.BuildableItem item : Jenkins.get().getQueue().getBuildableItems()) {
+            Label label = item.getAssignedLabel();
+            boolean matches = label == null ? agent.getMode() == Node.Mode.NORMAL : label.matches(agent);
+            if (!matches) {
+                continue;
+            }
+            String nodeId;
+            synchronized (jobs) {
+                nodeId = jobs.get(getJobName(item.task));
+            }
+            if (nodeId != null) {
+                nodes.add(nodeId);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns the name of the job a task belongs to. Branches of multibranch
+     * projects are distinct jobs.
+     */
+    static String getJobName(Queue.Task task) {
+        Queue.Task owner = task.getOwnerTask();
+        return owner instanceof Item ? ((Item) owner).getFullName() : owner.getFullDisplayName();
+    }
+}
@@ -1,8 +1,10 @@
 package info.multani.jenkins.plugins.nomad;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
 import com.hashicorp.nomad.apimodel.Job;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.DescriptorVisibilityFilter;
@@ -10,7 +12,13 @@ import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
 import hudson.tools.ToolLocationNodeProperty;
+import info.multani.jenkins.plugins.nomad.model.Affinity;
+import info.multani.jenkins.plugins.nomad.model.Constraint;
+import info.multani.jenkins.plugins.nomad.model.Device;
 import info.multani.jenkins.plugins.nomad.model.EnvVar;
+import info.multani.jenkins.plugins.nomad.model.Spread;
+import info.multani.jenkins.plugins.nomad.model.Volume;
+import info.multani.jenkins.plugins.nomad.model.VolumeMount;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -18,8 +26,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.RandomStringUtils;
@@ -48,12 +59,32 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     public static final int DEFAULT_SLAVE_JENKINS_CONNECTION_TIMEOUT = 100;
 
+    public static final String DEFAULT_CACHE_PATH = "/cache";
+
+    /**
+     * Highest priority of the jobs of preemptible templates: jobs of the
+     * default priority (50) can preempt them.
+     */
+    public static final int MAX_PREEMPTIBLE_PRIORITY = 40;
+
+    /**
+     * Canonical templates indexed by cloud, name, labels, node properties and
+     * specification hash, see {@link #intern(String)}.
+     */
+    private static final ConcurrentMap<String, NomadJobTemplate> INTERNED = new MapMaker().weakValues().makeMap();
+
     private String region;
 
     private List<String> datacenters;
 
     private String name;
 
+    /**
+     * Name given by the user to a template whose name has been generated, see
+     * {@link #generateName(String)}.
+     */
+    private String baseName;
+
     private String image;
 
     private String command;
@@ -66,6 +97,8 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     private int idleMinutes;
 
+    private int numExecutors = 1;
+
     private String label;
 
     private Node.Mode nodeUsageMode;
@@ -78,8 +111,43 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     private List<EnvVar> envVars = new ArrayList<>();
 
+    private boolean colocateTasks;
+
+    private boolean stickyNode;
+
+    private String cacheVolume;
+
+    private String cachePath = DEFAULT_CACHE_PATH;
+
+    private List<Volume> volumes;
+
+    private List<VolumeMount> volumeMounts;
+
+    private Integer priority;
+
+    private boolean preemptible;
+
+    private List<Constraint> constraints;
+
+    private List<Affinity> affinities;
+
+    private List<Spread> spreads;
+
     private transient List<ToolLocationNodeProperty> nodeProperties;
 
+    private transient volatile CompiledJobTemplate compiled;
+
+    /**
+     * Digest of {@link #getSpec()}, computed when first needed and reset by
+     * the setters of the specification.
+     */
+    private transient volatile String specHash;
+
+    /**
+     * Whether this is a canonical instance, which can't be modified.
+     */
+    private transient boolean interned;
+
     @DataBoundConstructor
     public NomadJobTemplate() {
     }
@@ -91,6 +159,18 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         this.setName(from.getName());
         this.setNodeUsageMode(from.getNodeUsageMode());
         this.setSlaveConnectTimeout(from.getSlaveConnectTimeout());
+        this.setNumExecutors(from.getNumExecutors());
+        this.setColocateTasks(from.isColocateTasks());
+        this.setStickyNode(from.isStickyNode());
+        this.setCacheVolume(from.getCacheVolume());
+        this.setCachePath(from.getCachePath());
+        this.setVolumes(from.getVolumes());
+        this.setVolumeMounts(from.getVolumeMounts());
+        this.setPriority(from.getPriority());
+        this.setPreemptible(from.isPreemptible());
+        this.setConstraints(from.getConstraints());
+        this.setAffinities(from.getAffinities());
+        this.setSpreads(from.getSpreads());
     }
 
     private Optional<TaskTemplate> getFirstContainer() {
@@ -99,6 +179,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     @DataBoundSetter
     public void setName(String name) {
+        modified();
         this.name = name;
     }
 
@@ -111,6 +192,19 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         //issues with concurrent builds, or messing with pre-existing configuration
         String randString = RandomStringUtils.random(10, "bcdfghjklmnpqrstvwxz0123456789");
         setName(String.format(JOB_NAME_FORMAT, stepName, randString));
+        baseName = stepName;
+    }
+
+    /**
+     * Returns a name identifying the agents of this template across builds:
+     * the name of the template, or, if it has been generated, the name given
+     * by the user and the digest of the specification.
+     *
+     * @return the name under which the resource usage of the agents is
+     * recorded.
+     */
+    public String getUsageName() {
+        return baseName == null ? name : baseName + "@" + getSpecHash();
     }
 
     public String getDisplayName() {
@@ -123,6 +217,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     @DataBoundSetter
     public void setRegion(String region) {
+        modified();
         this.region = region;
     }
 
@@ -135,10 +230,12 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     @DataBoundSetter
     public void setDatacenters(List<String> datacenters) {
+        modified();
         this.datacenters = datacenters;
     }
 
     public void setInstanceCap(int instanceCap) {
+        modified();
         if (instanceCap < 0) {
             this.instanceCap = Integer.MAX_VALUE;
         } else {
@@ -152,6 +249,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
     }
 
     public void setSlaveConnectTimeout(int slaveConnectTimeout) {
+        modified();
         if (slaveConnectTimeout <= 0) {
             LOGGER.log(Level.WARNING, "Agent -> Jenkins connection timeout "
                     + "cannot be <= 0. Falling back to the default value: "
@@ -200,6 +298,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
     }
 
     public void setIdleMinutes(int i) {
+        modified();
         this.idleMinutes = i;
     }
 
@@ -224,6 +323,41 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         }
     }
 
+    /**
+     * Number of executors of each agent. The resources of the task running
+     * the agent are multiplied by this number.
+     */
+    public int getNumExecutors() {
+        return numExecutors < 1 ? 1 : numExecutors;
+    }
+
+    @DataBoundSetter
+    public void setNumExecutors(int numExecutors) {
+        modified();
+        this.numExecutors = Math.max(1, numExecutors);
+    }
+
+    /**
+     * Returns the task running the agent, whose resources are multiplied by
+     * the number of executors: the task named {@link NomadCloud#JNLP_NAME},
+     * or else the first task without a lifecycle hook.
+     *
+     * @return the task running the agent, or null if the template has no task
+     */
+    @CheckForNull
+    TaskTemplate getAgentTask() {
+        TaskTemplate main = null;
+        for (TaskTemplate task : getTaskGroups()) {
+            if (NomadCloud.JNLP_NAME.equals(task.getName())) {
+                return task;
+            }
+            if (main == null && task.getLifecycleHook() == null) {
+                main = task;
+            }
+        }
+        return main != null || getTaskGroups().isEmpty() ? main : getTaskGroups().get(0);
+    }
+
     public Set<LabelAtom> getLabelSet() {
         return Label.parse(label);
     }
@@ -241,6 +375,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     @DataBoundSetter
     public void setLabel(String label) {
+        modified();
         this.label = label;
     }
 
@@ -250,11 +385,13 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     @DataBoundSetter
     public void setNodeUsageMode(Node.Mode nodeUsageMode) {
+        modified();
         this.nodeUsageMode = nodeUsageMode;
     }
 
     @DataBoundSetter
     public void setNodeUsageMode(String nodeUsageMode) {
+        modified();
         this.nodeUsageMode = Node.Mode.valueOf(nodeUsageMode);
     }
 
@@ -270,6 +407,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
     }
 
     public void addEnvVars(List<EnvVar> envVars) {
+        modified();
         if (envVars != null) {
             this.envVars.addAll(envVars);
         }
@@ -277,6 +415,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     @DataBoundSetter
     public void setEnvVars(List<EnvVar> envVars) {
+        modified();
         if (envVars != null) {
             this.envVars.clear();
             this.addEnvVars(envVars);
@@ -285,6 +424,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     @DataBoundSetter
     public void setNodeProperties(List<ToolLocationNodeProperty> nodeProperties) {
+        modified();
         this.nodeProperties = nodeProperties;
     }
 
@@ -296,8 +436,174 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         return nodeProperties;
     }
 
+    /**
+     * Whether all the tasks run in the same task group, and thus in the same
+     * allocation, instead of each task running in its own task group.
+     */
+    public boolean isColocateTasks() {
+        return colocateTasks;
+    }
+
+    @DataBoundSetter
+    public void setColocateTasks(boolean colocateTasks) {
+        modified();
+        this.colocateTasks = colocateTasks;
+    }
+
+    /**
+     * Whether the agents prefer the Nomad client which last ran the job they
+     * are started for.
+     */
+    public boolean isStickyNode() {
+        return stickyNode;
+    }
+
+    @DataBoundSetter
+    public void setStickyNode(boolean stickyNode) {
+        modified();
+        this.stickyNode = stickyNode;
+    }
+
+    /**
+     * Priority of the Nomad jobs, between 1 and 100, or null for the default
+     * priority of Nomad.
+     */
+    @CheckForNull
+    public Integer getPriority() {
+        return priority;
+    }
+
+    @DataBoundSetter
+    public void setPriority(Integer priority) {
+        modified();
+        this.priority = priority == null || priority <= 0 ? null : Math.min(priority, 100);
+    }
+
+    /**
+     * Whether the agents may be preempted by the jobs of a higher priority.
+     */
+    public boolean isPreemptible() {
+        return preemptible;
+    }
+
+    @DataBoundSetter
+    public void setPreemptible(boolean preemptible) {
+        modified();
+        this.preemptible = preemptible;
+    }
+
+    /**
+     * Returns the priority of the Nomad jobs: the priority of preemptible
+     * templates is capped at {@link #MAX_PREEMPTIBLE_PRIORITY}.
+     *
+     * @return the priority, or null for the default priority of Nomad
+     */
+    @CheckForNull
+    Integer getJobPriority() {
+        if (preemptible) {
+            return priority == null ? MAX_PREEMPTIBLE_PRIORITY : Math.min(priority, MAX_PREEMPTIBLE_PRIORITY);
+        }
+        return priority;
+    }
+
+    /**
+     * Name of the Nomad host volume mounted in all the tasks, to keep caches
+     * between the agents running on the same client.
+     */
+    @CheckForNull
+    public String getCacheVolume() {
+        return cacheVolume;
+    }
+
+    @DataBoundSetter
+    public void setCacheVolume(String cacheVolume) {
+        modified();
+        this.cacheVolume = Util.fixEmptyAndTrim(cacheVolume);
+    }
+
+    public String getCachePath() {
+        return cachePath == null ? DEFAULT_CACHE_PATH : cachePath;
+    }
+
+    @DataBoundSetter
+    public void setCachePath(String cachePath) {
+        modified();
+        this.cachePath = Util.fixEmptyAndTrim(cachePath);
+    }
+
+    /**
+     * Constraints on the Nomad clients the agents can be placed on.
+     */
+    @Nonnull
+    public List<Constraint> getConstraints() {
+        return constraints == null ? Collections.emptyList() : constraints;
+    }
+
+    @DataBoundSetter
+    public void setConstraints(List<Constraint> constraints) {
+        modified();
+        this.constraints = constraints == null ? null : new ArrayList<>(constraints);
+    }
+
+    /**
+     * Nomad clients the agents prefer, or avoid.
+     */
+    @Nonnull
+    public List<Affinity> getAffinities() {
+        return affinities == null ? Collections.emptyList() : affinities;
+    }
+
+    @DataBoundSetter
+    public void setAffinities(List<Affinity> affinities) {
+        modified();
+        this.affinities = affinities == null ? null : new ArrayList<>(affinities);
+    }
+
+    /**
+     * Attributes of the Nomad clients the agents are spread over.
+     */
+    @Nonnull
+    public List<Spread> getSpreads() {
+        return spreads == null ? Collections.emptyList() : spreads;
+    }
+
+    @DataBoundSetter
+    public void setSpreads(List<Spread> spreads) {
+        modified();
+        this.spreads = spreads == null ? null : new ArrayList<>(spreads);
+    }
+
+    /**
+     * Volumes requested by all the task groups.
+     */
+    @Nonnull
+    public List<Volume> getVolumes() {
+        return volumes == null ? Collections.emptyList() : volumes;
+    }
+
+    @DataBoundSetter
+    public void setVolumes(List<Volume> volumes) {
+        modified();
+        this.volumes = volumes == null ? null : new ArrayList<>(volumes);
+    }
+
+    /**
+     * Volumes mounted in all the tasks.
+     */
+    @Nonnull
+    public List<VolumeMount> getVolumeMounts() {
+        return volumeMounts == null ? Collections.emptyList() : volumeMounts;
+    }
+
+    @DataBoundSetter
+    public void setVolumeMounts(List<VolumeMount> volumeMounts) {
+        modified();
+        this.volumeMounts = volumeMounts == null ? null : new ArrayList<>(volumeMounts);
+    }
+
     @DataBoundSetter
     public void setTaskGroups(@Nonnull List<TaskTemplate> items) {
+        modified();
         synchronized (this.taskGroups) {
             this.taskGroups.clear();
             this.taskGroups.addAll(items);
@@ -338,6 +644,161 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         return new NomadJobTemplateBuilder(this).build(slave);
     }
 
+    /**
+     * Returns a digest of the normalized specification of this template:
+     * region, datacenters, environment variables and tasks. The name and the
+     * label of the template are not part of the specification, so that two
+     * templates producing the same agents have the same digest.
+     *
+     * The digest is cached: the task templates must not be modified once
+     * they have been set with {@link #setTaskGroups}.
+     *
+     * @return a digest of the normalized specification of this template.
+     */
+    public String getSpecHash() {
+        String hash = specHash;
+        if (hash == null) {
+            hash = Util.getDigestOf(getSpec());
+            specHash = hash;
+        }
+        return hash;
+    }
+
+    String getSpec() {
+        List<String> dc = new ArrayList<>(getDatacenters());
+        Collections.sort(dc);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("region=").append(region).append('\n');
+        sb.append("datacenters=").append(dc).append('\n');
+        sb.append("env=").append(normalizeEnvVars(getEnvVars())).append('\n');
+        sb.append("instanceCap=").append(instanceCap).append('\n');
+        sb.append("idleMinutes=").append(idleMinutes).append('\n');
+        sb.append("numExecutors=").append(getNumExecutors()).append('\n');
+        sb.append("slaveConnectTimeout=").append(slaveConnectTimeout).append('\n');
+        sb.append("nodeUsageMode=").append(nodeUsageMode).append('\n');
+        sb.append("colocateTasks=").append(colocateTasks).append('\n');
+        sb.append("stickyNode=").append(stickyNode).append('\n');
+        sb.append("cacheVolume=").append(cacheVolume).append('\n');
+        sb.append("cachePath=").append(getCachePath()).append('\n');
+        sb.append("volumes=").append(getVolumes()).append('\n');
+        sb.append("volumeMounts=").append(getVolumeMounts()).append('\n');
+        sb.append("priority=").append(priority).append('\n');
+        sb.append("preemptible=").append(preemptible).append('\n');
+        sb.append("constraints=").append(getConstraints()).append('\n');
+        sb.append("affinities=").append(getAffinities()).append('\n');
+        sb.append("spreads=").append(getSpreads()).append('\n');
+        for (TaskTemplate t : getTaskGroups()) {
+            t.appendSpec(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the canonical instance of this template. All the templates of a
+     * cloud with the same name, labels, node properties and specification
+     * share the same canonical instance, as long as it is referenced.
+     *
+     * The canonical instance is a copy of the template shared between all its
+     * users: its setters throw {@link UnsupportedOperationException} and its
+     * lists are unmodifiable. This template isn't modified.
+     *
+     * @param cloudName the name of the cloud of the template
+     * @return the canonical instance of this template.
+     */
+    public NomadJobTemplate intern(@CheckForNull String cloudName) {
+        if (interned) {
+            return this;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(cloudName).append('/').append(name).append('@').append(getSpecHash())
+                .append('\n').append("label=").append(label).append('\n');
+        for (ToolLocationNodeProperty property : getNodeProperties()) {
+            for (ToolLocationNodeProperty.ToolLocation location : property.getLocations()) {
+                sb.append("tool=").append(location.getKey()).append('=').append(location.getHome()).append('\n');
+            }
+        }
+        String key = Util.getDigestOf(sb.toString());
+        NomadJobTemplate existing = INTERNED.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        NomadJobTemplate copy = internedCopy();
+        existing = INTERNED.putIfAbsent(key, copy);
+        return existing == null ? copy : existing;
+    }
+
+    /**
+     * Returns a copy of this template which can't be modified, with canonical
+     * task templates.
+     */
+    private NomadJobTemplate internedCopy() {
+        NomadJobTemplate copy = new NomadJobTemplate();
+        copy.region = region;
+        copy.datacenters = TaskTemplate.unmodifiable(datacenters);
+        copy.name = name;
+        copy.baseName = baseName;
+        copy.image = image;
+        copy.command = command;
+        copy.args = TaskTemplate.unmodifiable(args);
+        copy.instanceCap = instanceCap;
+        copy.slaveConnectTimeout = slaveConnectTimeout;
+        copy.idleMinutes = idleMinutes;
+        copy.numExecutors = numExecutors;
+        copy.label = label;
+        copy.nodeUsageMode = nodeUsageMode;
+        copy.resourcesCPU = resourcesCPU;
+        copy.resourcesMemory = resourcesMemory;
+        List<TaskTemplate> tasks = new ArrayList<>();
+        getTaskGroups().forEach(t -> tasks.add(t.intern()));
+        copy.taskGroups = Collections.unmodifiableList(tasks);
+        copy.envVars = TaskTemplate.unmodifiable(envVars);
+        copy.colocateTasks = colocateTasks;
+        copy.stickyNode = stickyNode;
+        copy.cacheVolume = cacheVolume;
+        copy.cachePath = cachePath;
+        copy.volumes = TaskTemplate.unmodifiable(volumes);
+        copy.volumeMounts = TaskTemplate.unmodifiable(volumeMounts);
+        copy.priority = priority;
+        copy.preemptible = preemptible;
+        copy.constraints = TaskTemplate.unmodifiable(constraints);
+        copy.affinities = TaskTemplate.unmodifiable(affinities);
+        copy.spreads = TaskTemplate.unmodifiable(spreads);
+        copy.nodeProperties = TaskTemplate.unmodifiable(nodeProperties);
+        copy.interned = true;
+        return copy;
+    }
+
+    /**
+     * Called by the setters: resets the cached hash of the specification.
+     *
+     * @throws UnsupportedOperationException if this is a canonical instance
+     */
+    private void modified() {
+        if (interned) {
+            throw new UnsupportedOperationException("Job template " + name + " is shared and can't be modified");
+        }
+        specHash = null;
+    }
+
+    /**
+     * Returns the environment variables as they end up in the job: sorted by
+     * name, the last definition of a variable winning.
+     */
+    static Map<String, String> normalizeEnvVars(List<EnvVar> envVars) {
+        Map<String, String> env = new TreeMap<>();
+        envVars.forEach(item -> env.put(item.getKey(), item.getValue()));
+        return env;
+    }
+
+    CompiledJobTemplate getCompiled() {
+        return compiled;
+    }
+
+    void setCompiled(CompiledJobTemplate compiled) {
+        this.compiled = compiled;
+    }
+
     public String getDescriptionForLogging() {
         return String.format("Agent specification [%s] (%s): %n%s",
                 getDisplayName(),
@@ -355,8 +816,13 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
                     .append("] ")
                     .append(t.getImage()).append(" ");
             StringBuilder optional = new StringBuilder();
-            optionalField(optional, "CPU", t.getResourcesCPU().toString(), "Mhz");
-            optionalField(optional, "Memory", t.getResourceMemory().toString(), "MB");
+            optionalField(optional, "CPU", t.getResourcesCPU(), "Mhz");
+            optionalField(optional, "Cores", t.getResourcesCores(), "");
+            optionalField(optional, "Memory", t.getResourceMemory(), "MB");
+            optionalField(optional, "Max memory", t.getResourcesMemoryMax(), "MB");
+            for (Device device : t.getDevices()) {
+                optionalField(optional, "Device " + device.getName(), device.getCount(), "");
+            }
             if (optional.length() > 0) {
                 sb.append("(").append(optional).append(")");
             }
@@ -365,12 +831,15 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         return String.join("\n", output);
     }
 
-    private void optionalField(StringBuilder builder, String label, String value, String unit) {
+    private void optionalField(StringBuilder builder, String label, Object value, String unit) {
         if (value != null) {
             if (builder.length() > 0) {
                 builder.append(", ");
             }
-            builder.append(label).append(": ").append(value).append(" ").append(unit);
+            builder.append(label).append(": ").append(value);
+            if (!unit.isEmpty()) {
+                builder.append(" ").append(unit);
+            }
         }
     }
 
@@ -24,16 +24,13 @@
 package info.multani.jenkins.plugins.nomad;
 
 import com.hashicorp.nomad.apimodel.Job;
-import com.hashicorp.nomad.apimodel.RestartPolicy;
-import com.hashicorp.nomad.apimodel.Task;
-import com.hashicorp.nomad.apimodel.TaskGroup;
-import static hudson.Util.replaceMacro;
-import info.multani.jenkins.plugins.nomad.model.EnvVar;
+import info.multani.jenkins.plugins.nomad.model.Volume;
+import info.multani.jenkins.plugins.nomad.model.VolumeMount;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 
@@ -44,6 +41,22 @@ public class NomadJobTemplateBuilder {
 
     private static final Logger LOGGER = Logger.getLogger(NomadJobTemplateBuilder.class.getName());
 
+    /**
+     * Name of the volume of {@link NomadJobTemplate#getCacheVolume()}
+     */
+    private static final String CACHE_VOLUME = "jenkins-cache";
+
+    /**
+     * Name of the task group of {@link NomadJobTemplate#isColocateTasks()}
+     */
+    private static final String COLOCATED_GROUP = "jenkins";
+
+    /**
+     * Meta set on the jobs of {@link NomadJobTemplate#isPreemptible()}
+     * templates.
+     */
+    static final String PREEMPTIBLE_META = "jenkins-preemptible";
+
     private final NomadJobTemplate template;
 
     public NomadJobTemplateBuilder(NomadJobTemplate template) {
@@ -51,37 +64,94 @@ public class NomadJobTemplateBuilder {
     }
 
     public Job build(NomadSlave slave) {
-        ArrayList<TaskGroup> taskGroups = new ArrayList<>();
+        NomadCloud cloud = slave.getNomadCloud();
+        Job job = compile(cloud).instantiate(slave);
+        if (cloud.isRightSizing()) {
+            NomadResourceUsage.get().rightSize(cloud, template, job);
+        }
+        return job;
+    }
+
+    /**
+     * Builds the job submitted to the plan endpoint of Nomad to check whether
+     * an agent of the template can be placed.
+     */
+    Job buildPlan(NomadCloud cloud) {
+        Job job = compile(cloud).instantiatePlan(cloud);
+        if (cloud.isRightSizing()) {
+            NomadResourceUsage.get().rightSize(cloud, template, job);
+        }
+        return job;
+    }
+
+    /**
+     * Returns the compiled job of the template for the given cloud, compiling
+     * it only if the template or the cloud configuration changed since the
+     * last compilation.
+     */
+    CompiledJobTemplate compile(NomadCloud cloud) {
+        String key = CompiledJobTemplate.getKey(template, cloud);
+        CompiledJobTemplate compiled = template.getCompiled();
+        if (compiled == null || !compiled.getKey().equals(key)) {
+            LOGGER.log(Level.FINE, "Compiling Nomad job of template {0}", template.getName());
+            compiled = doCompile(key, cloud);
+            template.setCompiled(compiled);
+        }
+        return compiled;
+    }
+
+    private CompiledJobTemplate doCompile(String key, NomadCloud cloud) {
+        String url = cloud.getJenkinsUrlOrDie();
+
+        // Default common environment variables for all the containers.
+        Map<String, String> env = new HashMap<>();
+        env.put("JNLP_PROTOCOL_OPTS", "");
+        env.put("JENKINS_URL", url);
+        if (!StringUtils.isBlank(cloud.getJenkinsTunnel())) {
+            env.put("JENKINS_TUNNEL", cloud.getJenkinsTunnel());
+        }
+        template.getEnvVars().forEach(item
+                -> env.put(item.getKey(), item.getValue())
+        );
+
+        List<Volume> volumes = new ArrayList<>(template.getVolumes());
+        List<VolumeMount> volumeMounts = new ArrayList<>(template.getVolumeMounts());
+        if (template.getCacheVolume() != null) {
+            volumes.add(new Volume(CACHE_VOLUME, template.getCacheVolume()));
+            volumeMounts.add(new VolumeMount(CACHE_VOLUME, template.getCachePath()));
+        }
 
+        // Only the task running the agent runs the builds: the resources of
+        // the sidecars and of the prestart tasks aren't scaled
+        TaskTemplate agentTask = template.getAgentTask();
+        List<CompiledJobTemplate.CompiledTask> tasks = new ArrayList<>();
         template.getTaskGroups().forEach((t) -> {
-            taskGroups.add(
-                    createTaskGroup(slave, t, template.getEnvVars())
-            );
+            tasks.add(t.compile(cloud, env, volumes, volumeMounts, t == agentTask ? template.getNumExecutors() : 1));
         });
 
-        if (taskGroups.isEmpty()) {
+        if (tasks.isEmpty()) {
             TaskTemplate task = TaskTemplate.defaultTask();
-            taskGroups.add(
-                    createTaskGroup(slave, task, template.getEnvVars())
-            );
+            tasks.add(task.compile(cloud, env, volumes, volumeMounts, template.getNumExecutors()));
         }
 
-        NomadCloud cloud = slave.getNomadCloud();
-
         Map<String, String> meta = new HashMap<>();
         meta.putAll(cloud.getLabels());
         meta.putAll(template.getLabelsMap());
 
-        Job job = new Job();
-        job.setMeta(meta);
-        job.setId(slave.getNodeName());
-        job.setName(slave.getNodeName());
-        job.setRegion(getRegion(cloud));
-        job.addDatacenters(getDatacenters(cloud));
-        job.setType("batch");
-        job.setTaskGroups(taskGroups);
+        if (template.isPreemptible()) {
+            meta.put(PREEMPTIBLE_META, "true");
+        }
+
+        List<Map<String, Object>> constraints = new ArrayList<>();
+        template.getConstraints().forEach(c -> constraints.add(CompiledJobTemplate.getConstraintConfig(c)));
+        List<Map<String, Object>> affinities = new ArrayList<>();
+        template.getAffinities().forEach(a -> affinities.add(CompiledJobTemplate.getAffinityConfig(a)));
+        List<Map<String, Object>> spreads = new ArrayList<>();
+        template.getSpreads().forEach(s -> spreads.add(CompiledJobTemplate.getSpreadConfig(s)));
 
-        return job;
+        return new CompiledJobTemplate(key, url, meta, getRegion(cloud), getDatacenters(cloud),
+                template.getJobPriority(), constraints, affinities, spreads, tasks,
+                template.isStickyNode(), template.isColocateTasks() ? COLOCATED_GROUP : null);
     }
 
     private String getRegion(NomadCloud cloud) {
@@ -97,44 +167,11 @@ public class NomadJobTemplateBuilder {
         return dc.toArray(new String[0]);
     }
 
-    private TaskGroup createTaskGroup(NomadSlave slave, TaskTemplate taskTemplate, Collection<EnvVar> globalEnvVars) {
-        // Last-write wins map of environment variable names to values
-        HashMap<String, String> env = new HashMap<>();
-        NomadCloud cloud = slave.getNomadCloud();
-        String url = cloud.getJenkinsUrlOrDie();
-
-        // Default common environment variables for all the containers.
-        env.put("JENKINS_SECRET", slave.getComputer().getJnlpMac());
-        env.put("JENKINS_AGENT_NAME", slave.getComputer().getName());
-        env.put("JNLP_PROTOCOL_OPTS", "");
-        env.put("JENKINS_JNLP_URL", url + "/computer/" + slave.getNodeName() + "/slave-agent.jnlp");
-
-        env.put("JENKINS_URL", url);
-        if (!StringUtils.isBlank(cloud.getJenkinsTunnel())) {
-            env.put("JENKINS_TUNNEL", cloud.getJenkinsTunnel());
-        }
-
-        if (globalEnvVars != null) {
-            globalEnvVars.forEach(item
-                    -> env.put(item.getKey(), item.getValue())
-            );
-        }
-
-        TaskGroup taskGroup = new TaskGroup();
-        taskGroup.setName(substituteEnv(taskTemplate.getName()));
-
-        Task task = taskTemplate.build(slave, new HashMap<>(env));
-        taskGroup.addTasks(task);
-
-        RestartPolicy restartPolicy = new RestartPolicy()
-                .setMode("fail")
-                .setAttempts(0);
-        taskGroup.setRestartPolicy(restartPolicy);
-
-        return taskGroup;
-    }
-
+    /**
+     * Substitutes the references to the environment variables of the Jenkins
+     * controller.
+     */
     public static String substituteEnv(String s) {
-        return replaceMacro(s, System.getenv());
+        return Macro.render(s, System::getenv);
     }
 }
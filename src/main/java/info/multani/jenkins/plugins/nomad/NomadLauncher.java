@@ -23,14 +23,20 @@
  */
 package info.multani.jenkins.plugins.nomad;
 
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Evaluation;
 import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskEvent;
+import com.hashicorp.nomad.apimodel.TaskGroup;
 import com.hashicorp.nomad.apimodel.TaskState;
 import com.hashicorp.nomad.javasdk.ErrorResponseException;
 import com.hashicorp.nomad.javasdk.EvaluationResponse;
 import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.QueryOptions;
 import com.hashicorp.nomad.javasdk.ServerQueryResponse;
 import hudson.AbortException;
 import hudson.model.TaskListener;
@@ -40,12 +46,19 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import static java.util.logging.Level.*;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -57,6 +70,12 @@ public class NomadLauncher extends JNLPLauncher {
 
     private boolean launched;
 
+    /**
+     * Whether the job of the agent is being started, on the
+     * {@link NomadOperationExecutor} of its cloud.
+     */
+    private transient volatile boolean launching;
+
     @DataBoundConstructor
     public NomadLauncher(String tunnel, String vmargs) {
         super(tunnel, vmargs);
@@ -90,32 +109,65 @@ public class NomadLauncher extends JNLPLauncher {
             computer.setAcceptingTasks(true);
             return;
         }
+        if (launching) {
+            LOGGER.log(FINE, "Agent is already being launched: {0}", slave.getNodeName());
+            return;
+        }
 
+        // Starting the job takes minutes: wait for it on the threads of the
+        // cloud rather than on the threads shared with the agent channels.
+        // The agent connects by itself once its job is running.
         NomadCloud cloud = slave.getNomadCloud();
+        launching = true;
+        try {
+            cloud.getOperationExecutor().submit(() -> {
+                try {
+                    launch(nomadComputer, slave, cloud, logger);
+                } finally {
+                    launching = false;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            launching = false;
+            LOGGER.log(Level.WARNING, "Too many Nomad operations queued, removing agent {0}", slave.getNodeName());
+            logger.printf("Too many Nomad operations queued, removing agent %s%n", slave.getNodeName());
+            try {
+                slave.terminate();
+            } catch (IOException | InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "Unable to remove Jenkins node", ex);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the job of an agent, and waits for the agent to connect. The
+     * agent is removed if it doesn't.
+     */
+    private void launch(NomadComputer computer, NomadSlave slave, NomadCloud cloud, PrintStream logger) {
         final NomadJobTemplate unwrappedTemplate = slave.getTemplate();
         try {
+            if (unwrappedTemplate == null) {
+                throw new IllegalStateException("Template of agent " + slave.getNodeName() + " doesn't exist anymore");
+            }
             NomadApiClient client = cloud.connect();
             Job job = getJobTemplate(slave, unwrappedTemplate);
             String jobID = job.getId();
+            // The queries of the job must target its region, which may not be
+            // the region of the Nomad server the cloud connects to
+            String region = job.getRegion();
+            slave.setNomadRegion(region);
+            recordRequestedResources(slave, job);
 
             LOGGER.log(Level.FINE, "Creating Nomad job: {0}", jobID);
 
-            EvaluationResponse evaluation;
-            try {
-                evaluation = client.getJobsApi().register(job);
-            } catch (ErrorResponseException exc) {
-                String msg = String.format("Unable to evaluate Nomad job '%s': %s", jobID, exc.getServerErrorMessage());
-                LOGGER.log(Level.SEVERE, msg, exc);
-                throw new AbortException(msg); // TODO: we should probably abort the build here, but AbortException doesn't do it.
-            }
-
-            String evaluationID = evaluation.getValue();
-            LOGGER.log(INFO, "Registered Nomad job {0} with evaluation ID: {1}",
-                    new Object[]{jobID, evaluationID});
-            LOGGER.log(FINE, "Created Nomad job: {0}", jobID);
-
-            logger.printf("[Nomad] Registered Nomad job %s with evaluation ID %s%n",
-                    jobID, evaluationID);
+            String evaluationID = register(client, job, logger);
+            // Templates the agent has been launched from, to retry the launch
+            // with another template when the job can't be placed
+            Set<String> triedTemplates = new HashSet<>();
+            triedTemplates.add(unwrappedTemplate.getName());
+            NomadJobTemplate template = unwrappedTemplate;
+            int retries = 0;
 
             // We need the job to be running and connected before returning
             // otherwise this method keeps being called multiple times
@@ -136,7 +188,7 @@ public class NomadLauncher extends JNLPLauncher {
 
                 try {
                     ServerQueryResponse<Job> response;
-                    response = client.getJobsApi().info(jobID);
+                    response = client.getJobsApi().info(jobID, new QueryOptions<Job>().setRegion(region));
                     job = response.getValue();
                 } catch (ErrorResponseException ex) {
                     throw new IllegalStateException("Unable to query Nomad job " + jobID + ": " + ex, ex);
@@ -150,14 +202,46 @@ public class NomadLauncher extends JNLPLauncher {
                 List<AllocationListStub> allocations;
                 try {
                     ServerQueryResponse<List<AllocationListStub>> response;
-                    response = client.getJobsApi().allocations(jobID);
+                    response = client.getJobsApi().allocations(jobID,
+                            new QueryOptions<List<AllocationListStub>>().setRegion(region));
                     allocations = response.getValue();
                 } catch (ErrorResponseException ex) {
                     throw new IllegalStateException("Unable to find allocations for Nomad job " + jobID + ": " + ex, ex);
                 }
 
                 if (allocations.isEmpty()) {
-                    LOGGER.log(FINE, "No allocations yet for for Nomad job {}", jobID);
+                    LOGGER.log(FINE, "No allocations yet for for Nomad job {0}", jobID);
+                    if (retries >= cloud.getLaunchRetries()) {
+                        // Wait for Nomad to place the job when some capacity
+                        // is freed
+                        continue;
+                    }
+                    String failure = getPlacementFailure(client, evaluationID, region);
+                    if (failure == null) {
+                        continue;
+                    }
+                    NomadJobTemplate retryTemplate = getRetryTemplate(cloud, unwrappedTemplate, region, triedTemplates);
+                    if (retryTemplate == null) {
+                        LOGGER.log(INFO, "Nomad job {0} can''t be placed ({1}), no other template to retry with",
+                                new Object[]{jobID, failure});
+                        logger.printf("Nomad job %1$s can't be placed (%2$s), no other template to retry with%n",
+                                jobID, failure);
+                        // Wait for Nomad to place the job, as without retries
+                        retries = cloud.getLaunchRetries();
+                        continue;
+                    }
+                    retries++;
+                    LOGGER.log(INFO, "Nomad job {0} can''t be placed ({1}), retrying with template {2} ({3}/{4})",
+                            new Object[]{jobID, failure, retryTemplate.getName(), retries, cloud.getLaunchRetries()});
+                    logger.printf("Nomad job %1$s can't be placed (%2$s), retrying with template %3$s (%4$s/%5$s)%n",
+                            jobID, failure, retryTemplate.getName(), retries, cloud.getLaunchRetries());
+                    // Same agent, secret, job ID and region: the job is
+                    // updated in place, no other job is created.
+                    template = retryTemplate;
+                    slave.setTemplate(template);
+                    job = getJobTemplate(slave, template);
+                    recordRequestedResources(slave, job);
+                    evaluationID = register(client, job, logger);
                     continue;
                 }
 
@@ -198,6 +282,10 @@ public class NomadLauncher extends JNLPLauncher {
                     }
                     if (taskState.getState().equals("dead") && taskState.getFailed()) {
                         terminatedTasks.add(entry);
+                    } else if (taskState.getState().equals("dead")) {
+                        // Completed, like prestart or poststart tasks which
+                        // are not sidecars
+                        LOGGER.log(FINE, "Task has completed {0} [{1}]", new Object[]{jobID, taskName});
                     } else if (!taskState.getState().equals("running")) {
                         allContainersAreReady = false;
                     }
@@ -215,6 +303,11 @@ public class NomadLauncher extends JNLPLauncher {
                     continue;
                 }
 
+                slave.setNomadNodeId(lastAlloc.getNodeId());
+                slave.setNomadAllocationId(lastAlloc.getId());
+                slave.setImagePullTime(getImagePullTime(lastAlloc));
+                NomadImageLocality.record(cloud, job, lastAlloc.getNodeId());
+
                 if (!jobStatus.equals("pending")) {
                     break;
                 }
@@ -224,7 +317,7 @@ public class NomadLauncher extends JNLPLauncher {
                 throw new IllegalStateException("Nomad job " + jobID + " is not running after " + j + " attempts, status: " + jobStatus);
             }
 
-            j = unwrappedTemplate.getSlaveConnectTimeout();
+            j = template.getSlaveConnectTimeout();
 
             // now wait for agent to be online
             for (; i < j; i++) {
@@ -241,16 +334,21 @@ public class NomadLauncher extends JNLPLauncher {
             if (!slave.getComputer().isOnline()) {
                 throw new IllegalStateException("Agent is not connected after " + j + " attempts, status: " + jobStatus);
             }
+            if (slave.getCreationTime() > 0) {
+                slave.setOnlineLatency(System.currentTimeMillis() - slave.getCreationTime());
+            }
+            NomadCloudHealth.launchSucceeded(cloud, slave.getOnlineLatency());
             computer.setAcceptingTasks(true);
         } catch (Throwable ex) {
             LOGGER.log(Level.WARNING, String.format("Error in provisioning; agent=%s, template=%s", slave, unwrappedTemplate), ex);
+            NomadCloudHealth.launchFailed(cloud);
             LOGGER.log(Level.FINER, "Removing Jenkins node: {0}", slave.getNodeName());
             try {
                 slave.terminate();
             } catch (IOException | InterruptedException e) {
                 LOGGER.log(Level.WARNING, "Unable to remove Jenkins node", e);
             }
-            throw Throwables.propagate(ex);
+            return;
         }
         launched = true;
         try {
@@ -263,6 +361,128 @@ public class NomadLauncher extends JNLPLauncher {
         }
     }
 
+    /**
+     * Registers the job of an agent.
+     *
+     * @return the ID of the evaluation of the job
+     */
+    private static String register(NomadApiClient client, Job job, PrintStream logger) throws IOException, NomadException {
+        String jobID = job.getId();
+        EvaluationResponse evaluation;
+        try {
+            evaluation = client.getJobsApi().register(job);
+        } catch (ErrorResponseException exc) {
+            String msg = String.format("Unable to evaluate Nomad job '%s': %s", jobID, exc.getServerErrorMessage());
+            LOGGER.log(Level.SEVERE, msg, exc);
+            throw new AbortException(msg); // TODO: we should probably abort the build here, but AbortException doesn't do it.
+        }
+
+        String evaluationID = evaluation.getValue();
+        LOGGER.log(INFO, "Registered Nomad job {0} with evaluation ID: {1}",
+                new Object[]{jobID, evaluationID});
+        LOGGER.log(FINE, "Created Nomad job: {0}", jobID);
+
+        logger.printf("[Nomad] Registered Nomad job %s with evaluation ID %s%n",
+                jobID, evaluationID);
+        return evaluationID;
+    }
+
+    /**
+     * Returns why the evaluation of a job couldn't place its allocations.
+     *
+     * @return the reason, or null if the evaluation placed the job or hasn't
+     * completed yet
+     */
+    @CheckForNull
+    private static String getPlacementFailure(NomadApiClient client, String evaluationID, @CheckForNull String region)
+            throws IOException, NomadException {
+        Evaluation evaluation = client.getEvaluationsApi()
+                .info(evaluationID, new QueryOptions<Evaluation>().setRegion(region))
+                .getValue();
+        if (evaluation == null || evaluation.getFailedTgAllocs() == null || evaluation.getFailedTgAllocs().isEmpty()) {
+            return null;
+        }
+        return NomadPlacementPlanner.describe(evaluation.getFailedTgAllocs());
+    }
+
+    /**
+     * Returns the template to retry the launch of an agent with: the next
+     * template of the cloud not tried yet which can run whatever the agent
+     * has been requested for, that is which has the labels of the agent and
+     * the same number of executors.
+     *
+     * Only the templates running their jobs in the region of the job of the
+     * agent are considered: the job is updated in place, and a job can't
+     * move to another region.
+     *
+     * @param cloud the cloud of the agent
+     * @param original the template the agent has been created from
+     * @param region the region of the job of the agent
+     * @param tried the names of the templates tried so far, updated with the
+     * template returned
+     * @return the template, or null if all of them have been tried
+     */
+    @CheckForNull
+    private static NomadJobTemplate getRetryTemplate(NomadCloud cloud, NomadJobTemplate original,
+            @CheckForNull String region, Set<String> tried) {
+        for (NomadJobTemplate t : cloud.getAllTemplates()) {
+            String templateRegion = t.getRegion() == null ? cloud.getRegion() : t.getRegion();
+            if (!tried.contains(t.getName())
+                    && Objects.equals(templateRegion, region)
+                    && t.getNumExecutors() == original.getNumExecutors()
+                    && t.getLabelSet().containsAll(original.getLabelSet())) {
+                tried.add(t.getName());
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private static void recordRequestedResources(NomadSlave slave, Job job) {
+        int cpu = 0;
+        int memory = 0;
+        for (TaskGroup taskGroup : job.getTaskGroups()) {
+            for (Task task : taskGroup.getTasks()) {
+                Resources resources = task.getResources();
+                if (resources != null) {
+                    cpu += resources.getCpu() == null ? 0 : resources.getCpu();
+                    memory += resources.getMemoryMb() == null ? 0 : resources.getMemoryMb();
+                }
+            }
+        }
+        slave.setRequestedResources(cpu, memory);
+    }
+
+    /**
+     * Returns the time spent pulling the images of an allocation: from the
+     * first image download to the start of the last task which downloaded
+     * its image, in milliseconds.
+     */
+    private static long getImagePullTime(AllocationListStub allocation) {
+        long pullStart = Long.MAX_VALUE;
+        long pullEnd = 0;
+        for (TaskState state : allocation.getTaskStates().values()) {
+            if (state.getEvents() == null) {
+                continue;
+            }
+            long taskPullStart = 0;
+            for (TaskEvent event : state.getEvents()) {
+                if ("Driver".equals(event.getType()) && event.getDriverMessage() != null
+                        && event.getDriverMessage().contains("image")) {
+                    if (taskPullStart == 0) {
+                        taskPullStart = event.getTime();
+                    }
+                } else if ("Started".equals(event.getType()) && taskPullStart > 0) {
+                    pullStart = Math.min(pullStart, taskPullStart);
+                    pullEnd = Math.max(pullEnd, event.getTime());
+                    break;
+                }
+            }
+        }
+        // Event times are in nanoseconds
+        return pullEnd == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(pullEnd - pullStart);
+    }
+
     private Job getJobTemplate(NomadSlave slave, NomadJobTemplate template) {
         return template == null ? null : template.build(slave);
     }
@@ -0,0 +1,157 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jenkins.security.ImpersonatingExecutorService;
+
+/**
+ * Runs the Nomad operations of a cloud in the background: provisioning and
+ * launch of the agents, and checks of their allocations.
+ *
+ * Each cloud has its own bounded pool of threads and queue, instead of sharing
+ * {@link hudson.model.Computer#threadPoolForRemoting} with the agent channels:
+ * a slow Nomad cluster only delays the operations of its own cloud. Operations
+ * submitted while the queue is full are rejected, so the callers can hold back
+ * instead of piling up work.
+ *
+ * The checks of the allocations of the running agents have their own threads
+ * and unbounded queue: they are short, and must not wait for, or be rejected
+ * because of, the agents being launched.
+ */
+public final class NomadOperationExecutor {
+
+    /**
+     * Delay after which idle threads stop.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Number of threads checking the allocations of the agents.
+     */
+    private static final int CHECK_THREADS = 2;
+
+    private final ThreadPoolExecutor pool;
+
+    private final ExecutorService executor;
+
+    private final ThreadPoolExecutor checkPool;
+
+    private final ExecutorService checkExecutor;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    NomadOperationExecutor(String cloudName, int maxConcurrentOperations, int maxQueuedOperations) {
+        pool = new ThreadPoolExecutor(maxConcurrentOperations, maxConcurrentOperations,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueuedOperations),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Nomad operations [" + cloudName + "]"));
+        pool.allowCoreThreadTimeOut(true);
+        // Operations run as the system, like on threadPoolForRemoting
+        executor = new ImpersonatingExecutorService(pool, ACL.SYSTEM);
+
+        checkPool = new ThreadPoolExecutor(CHECK_THREADS, CHECK_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Nomad checks [" + cloudName + "]"));
+        checkPool.allowCoreThreadTimeOut(true);
+        checkExecutor = new ImpersonatingExecutorService(checkPool, ACL.SYSTEM);
+    }
+
+    /**
+     * Submits an operation.
+     *
+     * @throws RejectedExecutionException if the queue of the cloud is full
+     */
+    <T> Future<T> submit(Callable<T> operation) {
+        try {
+            return executor.submit(operation);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Submits an operation.
+     *
+     * @throws RejectedExecutionException if the queue of the cloud is full
+     */
+    Future<?> submit(Runnable operation) {
+        try {
+            return executor.submit(operation);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Submits a check of the allocation of an agent. Checks are never
+     * rejected.
+     */
+    Future<?> submitCheck(Runnable check) {
+        return checkExecutor.submit(check);
+    }
+
+    /**
+     * @return how many operations can still be submitted without being
+     * rejected
+     */
+    int getRemainingCapacity() {
+        return Math.max(0, pool.getMaximumPoolSize() - pool.getActiveCount()) + pool.getQueue().remainingCapacity();
+    }
+
+    boolean hasBounds(int maxConcurrentOperations, int maxQueuedOperations) {
+        return getMaxConcurrentOperations() == maxConcurrentOperations
+                && getMaxQueuedOperations() == maxQueuedOperations;
+    }
+
+    /**
+     * Stops the threads once the operations already submitted are done.
+     */
+    void shutdown() {
+        pool.shutdown();
+        checkPool.shutdown();
+    }
+
+    public int getMaxConcurrentOperations() {
+        return pool.getMaximumPoolSize();
+    }
+
+    public int getMaxQueuedOperations() {
+        return pool.getQueue().size() + pool.getQueue().remainingCapacity();
+    }
+
+    /**
+     * @return the number of operations waiting for a thread
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return the number of operations running
+     */
+    public int getActiveOperations() {
+        return pool.getActiveCount();
+    }
+
+    public long getCompletedOperations() {
+        return pool.getCompletedTaskCount();
+    }
+
+    /**
+     * @return the number of operations rejected because the queue was full
+     */
+    public long getRejectedOperations() {
+        return rejected.get();
+    }
+}
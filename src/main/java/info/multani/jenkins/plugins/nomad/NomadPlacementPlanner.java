@@ -0,0 +1,163 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.AllocationMetric;
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.JobPlanResponse;
+import com.hashicorp.nomad.javasdk.NomadException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * Checks with the plan endpoint of Nomad whether the agents of a template can
+ * be placed, before asking Jenkins to create them.
+ *
+ * The results are cached per template, along with the compiled template
+ * version and the capacity epoch of the cloud they were planned for: a result
+ * is reused until it expires, until the template changes, or until an agent
+ * of the cloud terminates and frees some capacity on the Nomad clients. The
+ * expired results are dropped, so the cache doesn't keep the templates which
+ * aren't provisioned anymore.
+ */
+final class NomadPlacementPlanner {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadPlacementPlanner.class.getName());
+
+    /**
+     * Delay after which the placement of a template is planned again.
+     */
+    private static final long EXPIRATION = TimeUnit.SECONDS.toMillis(
+            Long.getLong(NomadPlacementPlanner.class.getName() + ".expiration", 30));
+
+    /**
+     * Capacity epoch, by cloud name.
+     */
+    private static final Map<String, AtomicLong> EPOCHS = new ConcurrentHashMap<>();
+
+    /**
+     * Last plan, by cloud and template name.
+     */
+    private static final Map<String, Plan> PLANS = new ConcurrentHashMap<>();
+
+    private NomadPlacementPlanner() {
+    }
+
+    /**
+     * Returns whether Nomad would place an agent of the given template now.
+     *
+     * If Nomad can't be asked, the agent is considered placeable, so that
+     * provisioning doesn't depend on the plan endpoint.
+     *
+     * @param cloud the cloud the agent would be started on
+     * @param template the template of the agent
+     * @return false if the plan says the job of the agent won't be placed
+     */
+    static boolean canPlace(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template) {
+        NomadJobTemplateBuilder builder = new NomadJobTemplateBuilder(template);
+        String key = builder.compile(cloud).getKey();
+        long epoch = getEpoch(cloud).get();
+        long now = System.currentTimeMillis();
+
+        PLANS.values().removeIf(p -> now - p.timestamp >= EXPIRATION);
+        String name = cloud.name + "/" + template.getName();
+        Plan plan = PLANS.get(name);
+        if (plan != null && plan.key.equals(key) && plan.epoch == epoch) {
+            return plan.placeable;
+        }
+
+        String failure;
+        try {
+            failure = plan(cloud, builder.buildPlan(cloud));
+        } catch (IOException | NomadException | RuntimeException e) {
+            LOGGER.log(Level.FINE, String.format("Unable to plan the placement of template %s, assuming it can be placed",
+                    template.getName()), e);
+            return true;
+        }
+        if (failure != null) {
+            LOGGER.log(Level.INFO, "Nomad can''t place agents of template {0} right now: {1}",
+                    new Object[]{template.getName(), failure});
+        }
+        PLANS.put(name, new Plan(key, epoch, now, failure == null));
+        return failure == null;
+    }
+
+    /**
+     * Records that some capacity has been freed on the Nomad clients of a
+     * cloud, so that the templates which couldn't be placed are planned again.
+     *
+     * @param cloud the cloud an agent terminated in
+     */
+    static void capacityReleased(@Nonnull NomadCloud cloud) {
+        getEpoch(cloud).incrementAndGet();
+    }
+
+    private static AtomicLong getEpoch(NomadCloud cloud) {
+        return EPOCHS.computeIfAbsent(cloud.name, k -> new AtomicLong());
+    }
+
+    /**
+     * Plans a job, without registering it.
+     *
+     * @return why the job can't be placed, or null if it can be placed
+     */
+    private static String plan(NomadCloud cloud, Job job) throws IOException, NomadException {
+        JobPlanResponse response = cloud.connect().getJobsApi().plan(job, false).getValue();
+        Map<String, AllocationMetric> failed = response == null ? null : response.getFailedTgAllocs();
+        if (failed == null || failed.isEmpty()) {
+            return null;
+        }
+        return describe(failed);
+    }
+
+    /**
+     * Describes why the allocations of task groups couldn't be placed.
+     *
+     * @param failed the metrics of the failed allocations, by task group
+     */
+    static String describe(@Nonnull Map<String, AllocationMetric> failed) {
+        StringBuilder failure = new StringBuilder();
+        for (Map.Entry<String, AllocationMetric> entry : failed.entrySet()) {
+            AllocationMetric metric = entry.getValue();
+            if (failure.length() > 0) {
+                failure.append("; ");
+            }
+            failure.append("task group ").append(entry.getKey());
+            if (metric != null) {
+                failure.append(": ").append(metric.getNodesEvaluated()).append(" client(s) evaluated");
+                if (metric.getDimensionExhausted() != null && !metric.getDimensionExhausted().isEmpty()) {
+                    failure.append(", exhausted ").append(metric.getDimensionExhausted());
+                }
+                if (metric.getConstraintFiltered() != null && !metric.getConstraintFiltered().isEmpty()) {
+                    failure.append(", filtered by ").append(metric.getConstraintFiltered());
+                }
+            }
+        }
+        return failure.toString();
+    }
+
+    private static final class Plan {
+
+        /**
+         * Key of the compiled template planned.
+         */
+        private final String key;
+
+        private final long epoch;
+
+        private final long timestamp;
+
+        private final boolean placeable;
+
+        Plan(String key, long epoch, long timestamp, boolean placeable) {
+            this.key = key;
+            this.epoch = epoch;
+            this.timestamp = timestamp;
+            this.placeable = placeable;
+        }
+    }
+}
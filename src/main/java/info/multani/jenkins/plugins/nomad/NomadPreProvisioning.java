@@ -0,0 +1,69 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.Node;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+
+/**
+ * The agents started by {@link NomadCloud#preProvision} which haven't been
+ * added to Jenkins yet.
+ *
+ * Once added, the agents are counted by the node provisioner as any other
+ * connecting agent; until then, they are reported as in provisioning so that
+ * {@link NomadCloud#provision} doesn't request them a second time.
+ */
+@Extension
+public class NomadPreProvisioning extends InProvisioning {
+
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    /**
+     * Templates of the agents being pre-provisioned, by placeholder name.
+     */
+    private static final Map<String, NomadJobTemplate> PENDING = new ConcurrentHashMap<>();
+
+    /**
+     * Records that an agent of a template is being pre-provisioned.
+     *
+     * @return the placeholder name of the agent, to pass to {@link #done}
+     */
+    static String started(@Nonnull NomadJobTemplate template) {
+        String key = template.getName() + "#" + COUNTER.incrementAndGet();
+        PENDING.put(key, template);
+        return key;
+    }
+
+    /**
+     * Records that a pre-provisioned agent has been added to Jenkins, or
+     * failed to.
+     */
+    static void done(@Nonnull String key) {
+        PENDING.remove(key);
+    }
+
+    /**
+     * @return the number of agents of a template being pre-provisioned
+     */
+    static int count(@Nonnull NomadJobTemplate template) {
+        return (int) PENDING.values().stream()
+                .filter(t -> t.getName().equals(template.getName()))
+                .count();
+    }
+
+    @Nonnull
+    @Override
+    public Set<String> getInProvisioning(Label label) {
+        return PENDING.entrySet().stream()
+                .filter(e -> label == null
+                        ? e.getValue().getNodeUsageMode() == Node.Mode.NORMAL
+                        : label.matches(e.getValue().getLabelSet()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,141 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Allocation;
+import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.QueryOptions;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Result;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.CauseOfInterruption;
+
+/**
+ * Stops the builds of the agents preempted by Nomad.
+ *
+ * When a busy agent goes offline, its allocation is looked up: if Nomad
+ * evicted it to make room for a job of a higher priority, the builds running
+ * on the agent are interrupted right away with a {@link PreemptedCause},
+ * instead of waiting for an agent which won't come back.
+ */
+@Extension
+public class NomadPreemptionListener extends ComputerListener {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadPreemptionListener.class.getName());
+
+    @Override
+    public void onOffline(@Nonnull Computer c, @CheckForNull OfflineCause cause) {
+        if (!(c instanceof NomadComputer)) {
+            return;
+        }
+        NomadSlave slave = ((NomadComputer) c).getNode();
+        if (slave == null || slave.getNomadAllocationId() == null) {
+            return;
+        }
+        List<Executor> busy = new ArrayList<>();
+        for (Executor executor : c.getExecutors()) {
+            if (executor.getCurrentExecutable() != null) {
+                busy.add(executor);
+            }
+        }
+        if (busy.isEmpty()) {
+            return;
+        }
+        NomadCloud cloud;
+        try {
+            cloud = slave.getNomadCloud();
+        } catch (IllegalStateException e) {
+            return;
+        }
+        cloud.getOperationExecutor().submitCheck(() -> {
+            try {
+                String preemptedBy = getPreemptingAllocation(slave);
+                if (preemptedBy == null) {
+                    return;
+                }
+                LOGGER.log(Level.INFO, "Nomad agent {0} has been preempted by allocation {1}",
+                        new Object[]{slave.getNodeName(), preemptedBy});
+                for (Executor executor : busy) {
+                    executor.interrupt(Result.FAILURE, new PreemptedCause(slave.getNodeName(), preemptedBy));
+                }
+            } catch (IOException | NomadException | IllegalStateException e) {
+                LOGGER.log(Level.FINE, String.format("Unable to check whether agent %s has been preempted",
+                        slave.getNodeName()), e);
+            }
+        });
+    }
+
+    /**
+     * Returns the allocation which preempted the allocation of an agent.
+     *
+     * @return the ID of the preempting allocation, an empty string if it is
+     * unknown, or null if the agent hasn't been preempted
+     */
+    @CheckForNull
+    private static String getPreemptingAllocation(NomadSlave slave) throws IOException, NomadException {
+        Allocation allocation = slave.getNomadCloud().connect()
+                .getAllocationsApi()
+                .info(slave.getNomadAllocationId(), new QueryOptions<Allocation>().setRegion(slave.getNomadRegion()))
+                .getValue();
+        if (allocation == null || !"evict".equals(allocation.getDesiredStatus())) {
+            return null;
+        }
+        // The Nomad SDK doesn't know about preemption (Nomad 0.9+) yet
+        Map<String, Object> unmapped = allocation.getUnmappedProperties();
+        Object preemptedBy = unmapped == null ? null : unmapped.get("PreemptedByAllocation");
+        if (preemptedBy instanceof String && !((String) preemptedBy).isEmpty()) {
+            return (String) preemptedBy;
+        }
+        String description = allocation.getDesiredDescription();
+        if (description != null && description.toLowerCase().contains("preempt")) {
+            return "";
+        }
+        return null;
+    }
+
+    /**
+     * A build has been interrupted because its agent has been preempted.
+     */
+    public static final class PreemptedCause extends CauseOfInterruption {
+
+        private static final long serialVersionUID = 3456384567237934857L;
+
+        private final String agentName;
+
+        private final String preemptedBy;
+
+        PreemptedCause(String agentName, String preemptedBy) {
+            this.agentName = agentName;
+            this.preemptedBy = preemptedBy;
+        }
+
+        public String getAgentName() {
+            return agentName;
+        }
+
+        /**
+         * @return the ID of the preempting allocation, or an empty string if
+         * it is unknown
+         */
+        public String getPreemptedBy() {
+            return preemptedBy;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return preemptedBy.isEmpty()
+                    ? String.format("Nomad agent %s has been preempted by a job of a higher priority", agentName)
+                    : String.format("Nomad agent %s has been preempted by a job of a higher priority (allocation %s)",
+                            agentName, preemptedBy);
+        }
+    }
+}
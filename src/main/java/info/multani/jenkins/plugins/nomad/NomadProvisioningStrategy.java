@@ -0,0 +1,116 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.LoadStatistics;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Spreads the agents to provision over the Nomad clouds with
+ * {@link NomadCloud#isSpillOver()} enabled, instead of asking the clouds one
+ * after the other.
+ *
+ * The excess workload is first split between the clouds in proportion of
+ * their weight, computed from their launch latency, launch error rate and
+ * free capacity (see {@link NomadCloudHealth#getWeight}). What a cloud can't
+ * provision, because it is saturated or degraded, then spills over to the
+ * other clouds, in the order of their weight.
+ *
+ * The other clouds, and the labels no spill-over cloud can provision, are left
+ * to the other strategies.
+ */
+@Extension(ordinal = 100)
+public class NomadProvisioningStrategy extends NodeProvisioner.Strategy {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadProvisioningStrategy.class.getName());
+
+    @Nonnull
+    @Override
+    public NodeProvisioner.StrategyDecision apply(@Nonnull NodeProvisioner.StrategyState state) {
+        Label label = state.getLabel();
+        List<NomadCloud> clouds = new ArrayList<>();
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof NomadCloud && ((NomadCloud) cloud).isSpillOver() && cloud.canProvision(label)) {
+                clouds.add((NomadCloud) cloud);
+            }
+        }
+        if (clouds.isEmpty()) {
+            return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+        }
+
+        LoadStatistics.LoadStatisticsSnapshot snapshot = state.getSnapshot();
+        int available = snapshot.getAvailableExecutors() + snapshot.getConnectingExecutors()
+                + state.getPlannedCapacitySnapshot() + state.getAdditionalPlannedCapacity();
+        int demand = snapshot.getQueueLength();
+        if (available >= demand) {
+            return NodeProvisioner.StrategyDecision.PROVISIONING_COMPLETED;
+        }
+        int excess = demand - available;
+
+        Map<NomadCloud, Double> weights = new HashMap<>();
+        double totalWeight = 0;
+        for (NomadCloud cloud : clouds) {
+            double weight = NomadCloudHealth.getWeight(cloud);
+            weights.put(cloud, weight);
+            totalWeight += weight;
+        }
+        clouds.sort(Comparator.comparing(weights::get).reversed());
+        LOGGER.log(Level.FINE, "Spilling {0} executor(s) for label {1} over clouds {2}",
+                new Object[]{excess, label, weights});
+
+        // Share of each cloud, then whatever couldn't be provisioned spills
+        // over to the clouds still able to provision
+        int remaining = excess;
+        for (NomadCloud cloud : clouds) {
+            if (remaining <= 0) {
+                break;
+            }
+            int share = (int) Math.ceil(excess * weights.get(cloud) / totalWeight);
+            remaining -= provision(state, cloud, Math.min(share, remaining));
+        }
+        for (NomadCloud cloud : clouds) {
+            if (remaining <= 0) {
+                break;
+            }
+            remaining -= provision(state, cloud, remaining);
+        }
+
+        return remaining <= 0
+                ? NodeProvisioner.StrategyDecision.PROVISIONING_COMPLETED
+                : NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+    }
+
+    /**
+     * Asks a cloud to provision agents.
+     *
+     * @return the number of executors provisioned
+     */
+    private static int provision(NodeProvisioner.StrategyState state, NomadCloud cloud, int workload) {
+        if (workload <= 0) {
+            return 0;
+        }
+        Collection<NodeProvisioner.PlannedNode> planned = cloud.provision(state.getLabel(), workload);
+        if (planned.isEmpty()) {
+            return 0;
+        }
+        state.recordPendingLaunches(planned);
+        int executors = 0;
+        for (NodeProvisioner.PlannedNode node : planned) {
+            executors += node.numExecutors;
+        }
+        LOGGER.log(Level.FINE, "Cloud {0} provisions {1} executor(s) for label {2}",
+                new Object[]{cloud.name, executors, state.getLabel()});
+        return executors;
+    }
+}
@@ -0,0 +1,602 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.AllocResourceUsage;
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.ResourceUsage;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.apimodel.TaskResourceUsage;
+import com.hashicorp.nomad.javasdk.ClientApi;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.queue.Executables;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Samples the resource usage of the allocations running the agents, and
+ * recommends CPU and memory resources for the tasks of the templates.
+ *
+ * The usage is aggregated per template and task, and per Jenkins job. A task
+ * gets a recommendation once enough samples have been collected: the 95th
+ * percentile of its CPU usage and its peak memory usage, plus some headroom.
+ * When {@link NomadCloud#isRightSizing()} is enabled, the recommendations
+ * replace the resources of the tasks when the Nomad jobs are built.
+ *
+ * The history is kept in memory only.
+ */
+@Extension
+public class NomadResourceUsage extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadResourceUsage.class.getName());
+
+    private static final long RECURRENCE_PERIOD = TimeUnit.MINUTES.toMillis(
+            Long.getLong(NomadResourceUsage.class.getName() + ".recurrencePeriod", 1));
+
+    /**
+     * Number of samples kept per template task and per job.
+     */
+    private static final int MAX_SAMPLES = Integer.getInteger(NomadResourceUsage.class.getName() + ".maxSamples", 1440);
+
+    /**
+     * Number of samples needed before recommending resources.
+     */
+    private static final int MIN_SAMPLES = Integer.getInteger(NomadResourceUsage.class.getName() + ".minSamples", 30);
+
+    /**
+     * Delay after which the usage of a template or a job which didn't run is
+     * forgotten.
+     */
+    private static final long RETENTION = TimeUnit.DAYS.toMillis(
+            Long.getLong(NomadResourceUsage.class.getName() + ".retentionDays", 7));
+
+    /**
+     * Headroom added to the CPU and memory usage, in percent.
+     */
+    private static final int CPU_HEADROOM = 20;
+
+    private static final int MEMORY_HEADROOM = 10;
+
+    /**
+     * Share of throttled samples, in percent, above which the CPU usage is
+     * considered capped by the resources of the task.
+     */
+    private static final int THROTTLED_THRESHOLD = 10;
+
+    /**
+     * Smallest resources accepted by Nomad.
+     */
+    private static final int MIN_CPU = 20;
+
+    private static final int MIN_MEMORY = 10;
+
+    /**
+     * Resources Nomad gives to a task without resources.
+     */
+    private static final int DEFAULT_CPU = 100;
+
+    private static final int DEFAULT_MEMORY = 300;
+
+    /**
+     * Usage of the template tasks, indexed by {@link #getTaskKey}.
+     */
+    private final Map<List<String>, Usage> tasks = new ConcurrentHashMap<>();
+
+    /**
+     * Usage of the Jenkins jobs, indexed by cloud name and job full name.
+     */
+    private final Map<String, Usage> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Last CPU throttled time seen for each task of each allocation.
+     */
+    private final Map<String, Long> throttledTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Agents whose usage couldn't be sampled during the last run, logged once.
+     */
+    private final Set<String> failedAgents = ConcurrentHashMap.newKeySet();
+
+    public NomadResourceUsage() {
+        super("Nomad resource usage");
+    }
+
+    public static NomadResourceUsage get() {
+        return ExtensionList.lookupSingleton(NomadResourceUsage.class);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Map<NomadCloud, List<NomadSlave>> slavesByCloud = new HashMap<>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (!(node instanceof NomadSlave)) {
+                continue;
+            }
+            NomadSlave slave = (NomadSlave) node;
+            if (slave.getNomadNodeId() == null || slave.getNomadAllocationId() == null) {
+                continue;
+            }
+            try {
+                slavesByCloud.computeIfAbsent(slave.getNomadCloud(), k -> new ArrayList<>()).add(slave);
+            } catch (IllegalStateException e) {
+                LOGGER.log(Level.FINE, "Agent {0} has no cloud", slave.getNodeName());
+            }
+        }
+
+        Set<String> sampled = new HashSet<>();
+        Set<String> failed = new HashSet<>();
+        for (Map.Entry<NomadCloud, List<NomadSlave>> entry : slavesByCloud.entrySet()) {
+            NomadCloud cloud = entry.getKey();
+            try (NomadApiClient client = cloud.connect()) {
+                // The servers forward the statistics requests to the clients
+                // running the allocations
+                ClientApi clientApi = client.getClientApi(client.getConfig().getAddress());
+                for (NomadSlave slave : entry.getValue()) {
+                    try {
+                        sample(cloud, clientApi, slave, sampled);
+                    } catch (IOException | NomadException e) {
+                        failed.add(slave.getNodeName());
+                        if (!failedAgents.contains(slave.getNodeName())) {
+                            LOGGER.log(Level.WARNING, String.format(
+                                    "Failed to sample the resource usage of agent %s", slave.getNodeName()), e);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format(
+                        "Failed to sample the resource usage of the agents of cloud %s", cloud.name), e);
+            }
+        }
+        throttledTimes.keySet().retainAll(sampled);
+        failedAgents.retainAll(failed);
+        failedAgents.addAll(failed);
+
+        long expiration = System.currentTimeMillis() - RETENTION;
+        tasks.values().removeIf(usage -> usage.getLastSample() < expiration);
+        jobs.values().removeIf(usage -> usage.getLastSample() < expiration);
+    }
+
+    private void sample(NomadCloud cloud, ClientApi clientApi, NomadSlave slave, Set<String> sampled)
+            throws IOException, NomadException {
+        NomadJobTemplate template = slave.getTemplate();
+        if (template == null) {
+            return;
+        }
+        String allocationId = slave.getNomadAllocationId();
+        AllocResourceUsage allocationUsage = clientApi.stats(allocationId).getValue();
+        if (allocationUsage == null || allocationUsage.getTasks() == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int allocationCpu = 0;
+        int allocationMemory = 0;
+        boolean allocationThrottled = false;
+        for (Map.Entry<String, TaskResourceUsage> entry : allocationUsage.getTasks().entrySet()) {
+            ResourceUsage usage = entry.getValue().getResourceUsage();
+            if (usage == null || usage.getCpuStats() == null || usage.getMemoryStats() == null) {
+                continue;
+            }
+            int cpu = (int) Math.ceil(usage.getCpuStats().getTotalTicks());
+            int memory = (int) (toLong(usage.getMemoryStats().getRss()) / (1024 * 1024));
+
+            String throttledKey = allocationId + "/" + entry.getKey();
+            long throttledTime = toLong(usage.getCpuStats().getThrottledTime());
+            Long previous = throttledTimes.put(throttledKey, throttledTime);
+            boolean throttled = previous != null && throttledTime > previous;
+            sampled.add(throttledKey);
+
+            TaskTemplate task = getTaskTemplate(template, entry.getKey());
+            int executors = task != null && task == template.getAgentTask() ? template.getNumExecutors() : 1;
+            int requestedCpu = task == null || task.getResourcesCPU() == null
+                    ? DEFAULT_CPU : task.getResourcesCPU() * executors;
+            int requestedMemory = task == null || task.getResourceMemory() == null
+                    ? DEFAULT_MEMORY : task.getResourceMemory() * executors;
+
+            tasks.computeIfAbsent(getTaskKey(cloud, template.getUsageName(), entry.getKey()), k -> new Usage())
+                    .add(now, cpu, memory, throttled, requestedCpu, requestedMemory);
+
+            allocationCpu += cpu;
+            allocationMemory += memory;
+            allocationThrottled |= throttled;
+        }
+
+        Computer computer = slave.toComputer();
+        if (computer == null) {
+            return;
+        }
+        for (String jobName : getJobNames(computer)) {
+            jobs.computeIfAbsent(cloud.name + "/" + jobName, k -> new Usage())
+                    .add(now, allocationCpu, allocationMemory, allocationThrottled, 0, 0);
+        }
+        Set<Run<?, ?>> runs = NomadUsageAction.getRuns(computer);
+        for (Run<?, ?> run : runs) {
+            // Builds sharing an agent share its usage
+            NomadUsageAction.sampled(run, slave.getNodeName(),
+                    allocationCpu / runs.size(), allocationMemory / runs.size());
+        }
+    }
+
+    /**
+     * Returns the names of the Jenkins jobs currently running on an agent.
+     */
+    private static Set<String> getJobNames(Computer computer) {
+        Set<String> names = new HashSet<>();
+        for (Executor executor : computer.getExecutors()) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable != null) {
+                names.add(NomadJobLocality.getJobName(Executables.getParentOf(executable).getOwnerTask()));
+            }
+        }
+        return names;
+    }
+
+    @CheckForNull
+    private static TaskTemplate getTaskTemplate(NomadJobTemplate template, String taskName) {
+        List<TaskTemplate> taskTemplates = template.getTaskGroups();
+        if (taskTemplates == null || taskTemplates.isEmpty()) {
+            taskTemplates = Arrays.asList(TaskTemplate.defaultTask());
+        }
+        for (TaskTemplate task : taskTemplates) {
+            if (taskName.equals(NomadJobTemplateBuilder.substituteEnv(task.getName()))) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> getTaskKey(NomadCloud cloud, String templateName, String taskName) {
+        return Arrays.asList(cloud.name, templateName, taskName);
+    }
+
+    private static long toLong(@CheckForNull Number value) {
+        return value == null ? 0 : value.longValue();
+    }
+
+    /**
+     * Returns the resources recommended for a task of a template.
+     *
+     * @param cloud the cloud the template belongs to
+     * @param templateName the usage name of the template, see
+     * {@link NomadJobTemplate#getUsageName()}
+     * @param taskName the name of the task
+     * @return the recommendation, or null if not enough samples have been
+     * collected yet
+     */
+    @CheckForNull
+    public Recommendation getRecommendation(@Nonnull NomadCloud cloud, String templateName, String taskName) {
+        Usage usage = tasks.get(getTaskKey(cloud, templateName, taskName));
+        if (usage == null) {
+            return null;
+        }
+        UsageSummary summary = usage.summarize(cloud.name, templateName, taskName);
+        return summary.getSamples() < MIN_SAMPLES ? null : summary.recommend(cloud);
+    }
+
+    /**
+     * Replaces the CPU and memory resources of the tasks of a job by the
+     * resources recommended for them.
+     *
+     * @param cloud the cloud the job is started on
+     * @param template the template the job has been built from
+     * @param job the job to adjust
+     */
+    @SuppressWarnings("unchecked")
+    public void rightSize(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template, @Nonnull Job job) {
+        for (TaskGroup taskGroup : job.getTaskGroups()) {
+            for (Task task : taskGroup.getTasks()) {
+                Recommendation recommendation = getRecommendation(cloud, template.getUsageName(), task.getName());
+                if (recommendation == null || task.getResources() == null) {
+                    continue;
+                }
+                Resources resources = task.getResources();
+                Map<String, Object> unmapped = resources.getUnmappedProperties();
+                if (unmapped == null || !unmapped.containsKey("Cores")) {
+                    resources.setCpu(recommendation.getCpu());
+                }
+                resources.setMemoryMb(recommendation.getMemory());
+                if (unmapped != null && unmapped.get("MemoryMaxMB") instanceof Integer) {
+                    // The memory limit can't be lower than the memory
+                    resources.setUnmappedProperty("MemoryMaxMB",
+                            Math.max((Integer) unmapped.get("MemoryMaxMB"), recommendation.getMemory()));
+                }
+                LOGGER.log(Level.FINE, "Right-sized task {0} of job {1}: cpu={2}, memory={3}",
+                        new Object[]{task.getName(), job.getId(), recommendation.getCpu(), recommendation.getMemory()});
+            }
+        }
+    }
+
+    /**
+     * @return the usage of the template tasks, sorted by cloud, template and
+     * task
+     */
+    @Nonnull
+    public List<UsageSummary> getTaskUsages() {
+        Map<String, UsageSummary> summaries = new TreeMap<>();
+        for (Map.Entry<List<String>, Usage> entry : tasks.entrySet()) {
+            List<String> key = entry.getKey();
+            summaries.put(String.join("\n", key), entry.getValue().summarize(key.get(0), key.get(1), key.get(2)));
+        }
+        return new ArrayList<>(summaries.values());
+    }
+
+    /**
+     * @return the usage of the Jenkins jobs, sorted by cloud and job
+     */
+    @Nonnull
+    public List<UsageSummary> getJobUsages() {
+        Map<String, UsageSummary> summaries = new TreeMap<>();
+        for (Map.Entry<String, Usage> entry : jobs.entrySet()) {
+            String[] parts = entry.getKey().split("/", 2);
+            summaries.put(entry.getKey(), entry.getValue().summarize(parts[0], parts[1], null));
+        }
+        return new ArrayList<>(summaries.values());
+    }
+
+    /**
+     * Last samples of CPU, in MHz, and memory, in MB, usage.
+     *
+     * The buffers grow with the samples, up to {@link #MAX_SAMPLES}: most
+     * templates and jobs only run for a few minutes.
+     */
+    private static class Usage {
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        private int[] cpu = new int[Math.min(INITIAL_CAPACITY, MAX_SAMPLES)];
+
+        private int[] memory = new int[cpu.length];
+
+        private boolean[] throttled = new boolean[cpu.length];
+
+        private int count;
+
+        private int next;
+
+        private int requestedCpu;
+
+        private int requestedMemory;
+
+        private long lastSample;
+
+        synchronized void add(long timestamp, int cpuUsage, int memoryUsage, boolean cpuThrottled,
+                int requestedCpu, int requestedMemory) {
+            if (next == cpu.length && cpu.length < MAX_SAMPLES) {
+                int capacity = Math.min(cpu.length * 2, MAX_SAMPLES);
+                cpu = Arrays.copyOf(cpu, capacity);
+                memory = Arrays.copyOf(memory, capacity);
+                throttled = Arrays.copyOf(throttled, capacity);
+            }
+            cpu[next] = cpuUsage;
+            memory[next] = memoryUsage;
+            throttled[next] = cpuThrottled;
+            next = (next + 1) % MAX_SAMPLES;
+            count = Math.min(count + 1, MAX_SAMPLES);
+            this.requestedCpu = requestedCpu;
+            this.requestedMemory = requestedMemory;
+            this.lastSample = timestamp;
+        }
+
+        synchronized long getLastSample() {
+            return lastSample;
+        }
+
+        synchronized UsageSummary summarize(String cloudName, String name, String taskName) {
+            int[] cpuSamples = Arrays.copyOf(cpu, count);
+            int[] memorySamples = Arrays.copyOf(memory, count);
+            Arrays.sort(cpuSamples);
+            Arrays.sort(memorySamples);
+            int throttledSamples = 0;
+            for (int i = 0; i < count; i++) {
+                if (throttled[i]) {
+                    throttledSamples++;
+                }
+            }
+            return new UsageSummary(cloudName, name, taskName, count,
+                    percentile(cpuSamples, 95), max(cpuSamples),
+                    percentile(memorySamples, 95), max(memorySamples),
+                    count == 0 ? 0 : throttledSamples * 100 / count,
+                    requestedCpu, requestedMemory);
+        }
+
+        private static int percentile(int[] sorted, int percentile) {
+            return sorted.length == 0 ? 0 : sorted[Math.max(0, (int) Math.ceil(sorted.length * percentile / 100.0) - 1)];
+        }
+
+        private static int max(int[] sorted) {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+        }
+    }
+
+    /**
+     * Usage of a template task, or of a Jenkins job.
+     */
+    public static final class UsageSummary {
+
+        private final String cloudName;
+
+        private final String name;
+
+        @CheckForNull
+        private final String taskName;
+
+        private final int samples;
+
+        private final int cpuP95;
+
+        private final int cpuPeak;
+
+        private final int memoryP95;
+
+        private final int memoryPeak;
+
+        private final int throttledPercent;
+
+        private final int requestedCpu;
+
+        private final int requestedMemory;
+
+        UsageSummary(String cloudName, String name, @CheckForNull String taskName, int samples,
+                int cpuP95, int cpuPeak, int memoryP95, int memoryPeak, int throttledPercent,
+                int requestedCpu, int requestedMemory) {
+            this.cloudName = cloudName;
+            this.name = name;
+            this.taskName = taskName;
+            this.samples = samples;
+            this.cpuP95 = cpuP95;
+            this.cpuPeak = cpuPeak;
+            this.memoryP95 = memoryP95;
+            this.memoryPeak = memoryPeak;
+            this.throttledPercent = throttledPercent;
+            this.requestedCpu = requestedCpu;
+            this.requestedMemory = requestedMemory;
+        }
+
+        public String getCloudName() {
+            return cloudName;
+        }
+
+        /**
+         * @return the name of the template, or of the Jenkins job
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name of the task, or null for a Jenkins job
+         */
+        @CheckForNull
+        public String getTaskName() {
+            return taskName;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        public int getCpuP95() {
+            return cpuP95;
+        }
+
+        public int getCpuPeak() {
+            return cpuPeak;
+        }
+
+        public int getMemoryP95() {
+            return memoryP95;
+        }
+
+        public int getMemoryPeak() {
+            return memoryPeak;
+        }
+
+        /**
+         * @return the share of the samples during which the CPU has been
+         * throttled, in percent
+         */
+        public int getThrottledPercent() {
+            return throttledPercent;
+        }
+
+        public int getRequestedCpu() {
+            return requestedCpu;
+        }
+
+        public int getRequestedMemory() {
+            return requestedMemory;
+        }
+
+        /**
+         * @return the recommended resources, or null if not enough samples
+         * have been collected yet, or for a Jenkins job
+         */
+        @CheckForNull
+        public Recommendation getRecommendation() {
+            if (taskName == null || samples < MIN_SAMPLES) {
+                return null;
+            }
+            Cloud cloud = Jenkins.get().getCloud(cloudName);
+            return cloud instanceof NomadCloud ? recommend((NomadCloud) cloud) : null;
+        }
+
+        Recommendation recommend(NomadCloud cloud) {
+            int cpu = roundUp(cpuP95 * (100 + CPU_HEADROOM) / 100);
+            if (throttledPercent > THROTTLED_THRESHOLD) {
+                // The usage is capped by the resources: ask for more
+                cpu = Math.max(cpu, roundUp(requestedCpu * (100 + CPU_HEADROOM) / 100));
+            }
+            int memory = roundUp(memoryPeak * (100 + MEMORY_HEADROOM) / 100);
+            return new Recommendation(
+                    bound(Math.max(cpu, MIN_CPU), cloud.getRightSizingMinCpu(), cloud.getRightSizingMaxCpu()),
+                    bound(Math.max(memory, MIN_MEMORY), cloud.getRightSizingMinMemory(), cloud.getRightSizingMaxMemory()));
+        }
+
+        private static int roundUp(int value) {
+            return (value + 9) / 10 * 10;
+        }
+
+        private static int bound(int value, int min, int max) {
+            if (min > 0) {
+                value = Math.max(value, min);
+            }
+            if (max > 0) {
+                value = Math.min(value, max);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * CPU, in MHz, and memory, in MB, recommended for a task.
+     */
+    public static final class Recommendation {
+
+        private final int cpu;
+
+        private final int memory;
+
+        Recommendation(int cpu, int memory) {
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+
+        public int getCpu() {
+            return cpu;
+        }
+
+        public int getMemory() {
+            return memory;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import java.util.List;
+import jenkins.model.Jenkins;
+
+/**
+ * Lists the resource usage of the Nomad agents, the resources recommended
+ * for the tasks of the templates, the capacity of the Nomad clients and the
+ * Nomad operations of the clouds.
+ *
+ * @see NomadResourceUsage
+ * @see NomadCapacity
+ */
+@Extension
+public class NomadResourceUsageLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "computer.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Nomad resource usage";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Resource usage of the Nomad agents, and recommended resources for their templates.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "nomad-resource-usage";
+    }
+
+    public List<NomadResourceUsage.UsageSummary> getTaskUsages() {
+        return NomadResourceUsage.get().getTaskUsages();
+    }
+
+    public List<NomadResourceUsage.UsageSummary> getJobUsages() {
+        return NomadResourceUsage.get().getJobUsages();
+    }
+
+    public List<NomadCapacity.CapacitySummary> getCapacities() {
+        return NomadCapacity.get().getCapacities();
+    }
+
+    public List<NomadCloud> getClouds() {
+        return Jenkins.get().clouds.getAll(NomadCloud.class);
+    }
+}
@@ -3,6 +3,7 @@ package info.multani.jenkins.plugins.nomad;
 import com.hashicorp.nomad.javasdk.EvaluationResponse;
 import com.hashicorp.nomad.javasdk.NomadApiClient;
 import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.WriteOptions;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.console.ModelHyperlinkNote;
@@ -11,6 +12,7 @@ import hudson.model.Descriptor;
 import hudson.model.Executor;
 import hudson.model.Node;
 import hudson.model.Queue;
+import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.remoting.Engine;
 import hudson.remoting.VirtualChannel;
@@ -23,14 +25,17 @@ import hudson.slaves.RetentionStrategy;
 import info.multani.jenkins.plugins.nomad.pipeline.NomadJobTemplateStep;
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
 import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 import org.jenkinsci.plugins.durabletask.executors.OnceRetentionStrategy;
@@ -39,6 +44,12 @@ import org.jvnet.localizer.ResourceBundleHolder;
 
 public class NomadSlave extends AbstractCloudSlave {
 
+    /**
+     * Length of the random part of the names of the agents: agents of the
+     * same template only differ by it.
+     */
+    private static final int SUFFIX_LENGTH = 8;
+
     private static final Logger LOGGER = Logger.getLogger(NomadSlave.class.getName());
 
     private static final Integer DISCONNECTION_TIMEOUT = Integer
@@ -52,11 +63,111 @@ public class NomadSlave extends AbstractCloudSlave {
     private static final ResourceBundleHolder HOLDER = ResourceBundleHolder.get(Messages.class);
 
     private final String cloudName;
-    private final NomadJobTemplate template;
+
+    /**
+     * Name and specification hash of the template the agent has been created
+     * from. Only a reference to the template is persisted, the template itself
+     * is looked up from the cloud when needed.
+     */
+    private String templateName;
+    private String templateHash;
+
+    /**
+     * @deprecated the template is only referenced by its name and hash. Kept
+     * to load the agents persisted by previous versions.
+     */
+    @Deprecated
+    private NomadJobTemplate template;
+
+    /**
+     * ID of the Nomad client the agent is running on, once it has been placed.
+     */
+    @CheckForNull
+    private String nomadNodeId;
+
+    /**
+     * Region of the Nomad job running the agent, once it has been registered.
+     */
+    @CheckForNull
+    private String nomadRegion;
+
+    /**
+     * ID of the Nomad allocation running the agent, once it has been placed.
+     */
+    @CheckForNull
+    private String nomadAllocationId;
+
+    /**
+     * When the agent has been created, that is when it has been requested by
+     * the node provisioner.
+     */
+    private long creationTime;
+
+    /**
+     * Figures collected by the launcher: CPU, in MHz, and memory, in MB,
+     * requested by the allocation, time spent pulling the images and time
+     * between the creation of the agent and its connection, in milliseconds.
+     */
+    private int requestedCpu;
+    private int requestedMemory;
+    private long imagePullTime;
+    private long onlineLatency;
+
+    private transient NomadJobTemplate resolvedTemplate;
     private transient Set<Queue.Executable> executables = new HashSet<>();
 
+    /**
+     * Returns the template the agent has been created from.
+     *
+     * @return the template, or null if the template doesn't exist anymore.
+     */
+    @CheckForNull
     public NomadJobTemplate getTemplate() {
-        return template;
+        if (resolvedTemplate == null) {
+            resolvedTemplate = resolveTemplate();
+        }
+        return resolvedTemplate;
+    }
+
+    /**
+     * Replaces the template the agent is launched from, when its launch is
+     * retried with another template.
+     */
+    void setTemplate(@Nonnull NomadJobTemplate template) {
+        this.templateName = template.getName();
+        this.templateHash = template.getSpecHash();
+        this.resolvedTemplate = template;
+    }
+
+    @CheckForNull
+    private NomadJobTemplate resolveTemplate() {
+        NomadCloud cloud;
+        try {
+            cloud = getNomadCloud();
+        } catch (IllegalStateException e) {
+            LOGGER.log(Level.FINE, "Cannot resolve the template of agent {0}: {1}",
+                    new Object[]{name, e.getMessage()});
+            return null;
+        }
+
+        NomadJobTemplate sameName = null;
+        for (NomadJobTemplate t : cloud.getAllTemplates()) {
+            if (!Objects.equals(t.getName(), templateName)) {
+                continue;
+            }
+            if (Objects.equals(t.getSpecHash(), templateHash)) {
+                return t;
+            }
+            sameName = t;
+        }
+        if (sameName != null) {
+            LOGGER.log(Level.FINE, "Template {0} of agent {1} has changed since the agent has been created",
+                    new Object[]{templateName, name});
+        } else {
+            LOGGER.log(Level.FINE, "Template {0} of agent {1} doesn't exist anymore in cloud {2}",
+                    new Object[]{templateName, name, cloudName});
+        }
+        return sameName;
     }
 
     protected NomadSlave(String name, NomadJobTemplate template, String nodeDescription, String cloudName, String labelStr,
@@ -65,7 +176,7 @@ public class NomadSlave extends AbstractCloudSlave {
         super(name,
                 nodeDescription,
                 null, // TODO: remoteFs
-                1,
+                template.getNumExecutors(),
                 //                template.getNodeUsageMode() != null ? template.getNodeUsageMode() : TODO
                 Node.Mode.NORMAL,
                 labelStr == null ? null : labelStr,
@@ -75,13 +186,87 @@ public class NomadSlave extends AbstractCloudSlave {
         );
 
         this.cloudName = cloudName;
-        this.template = template;
+        this.templateName = template.getName();
+        this.templateHash = template.getSpecHash();
+        this.resolvedTemplate = template;
+        this.creationTime = System.currentTimeMillis();
     }
 
     public String getCloudName() {
         return cloudName;
     }
 
+    /**
+     * @return the name of the template the agent has been created from
+     */
+    String getTemplateName() {
+        return templateName;
+    }
+
+    @CheckForNull
+    public String getNomadNodeId() {
+        return nomadNodeId;
+    }
+
+    void setNomadNodeId(@CheckForNull String nomadNodeId) {
+        this.nomadNodeId = nomadNodeId;
+    }
+
+    /**
+     * @return the region of the Nomad job of the agent, or null for the
+     * region of the Nomad server the cloud connects to
+     */
+    @CheckForNull
+    public String getNomadRegion() {
+        return nomadRegion;
+    }
+
+    void setNomadRegion(@CheckForNull String nomadRegion) {
+        this.nomadRegion = nomadRegion;
+    }
+
+    @CheckForNull
+    public String getNomadAllocationId() {
+        return nomadAllocationId;
+    }
+
+    void setNomadAllocationId(@CheckForNull String nomadAllocationId) {
+        this.nomadAllocationId = nomadAllocationId;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public int getRequestedCpu() {
+        return requestedCpu;
+    }
+
+    public int getRequestedMemory() {
+        return requestedMemory;
+    }
+
+    void setRequestedResources(int requestedCpu, int requestedMemory) {
+        this.requestedCpu = requestedCpu;
+        this.requestedMemory = requestedMemory;
+    }
+
+    public long getImagePullTime() {
+        return imagePullTime;
+    }
+
+    void setImagePullTime(long imagePullTime) {
+        this.imagePullTime = imagePullTime;
+    }
+
+    public long getOnlineLatency() {
+        return onlineLatency;
+    }
+
+    void setOnlineLatency(long onlineLatency) {
+        this.onlineLatency = onlineLatency;
+    }
+
     /**
      * Returns the cloud instance which created this agent.
      *
@@ -99,13 +284,26 @@ public class NomadSlave extends AbstractCloudSlave {
         }
     }
 
+    /**
+     * Returns a unique agent name for the given template. Several agents can
+     * be running for the same template, so the name of the template is only
+     * used as a prefix.
+     *
+     * The name is also the ID of the Nomad job of the agent: it is generated
+     * again until no node of Jenkins has it, so an agent never replaces
+     * another agent or its job.
+     */
     static String getSlaveName(NomadJobTemplate template) {
         String name = template.getName();
         if (StringUtils.isEmpty(name)) {
-            template.generateName(NomadJobTemplateStep.DEFAULT_AGENT_NAME);
-            name = template.getName();
+            name = NomadJobTemplateStep.DEFAULT_AGENT_NAME;
         }
-        return name;
+        String slaveName;
+        do {
+            String randString = RandomStringUtils.random(SUFFIX_LENGTH, "bcdfghjklmnpqrstvwxz0123456789");
+            slaveName = String.format("%s-%s", name, randString);
+        } while (Jenkins.get().getNode(slaveName) != null);
+        return slaveName;
     }
 
     @Override
@@ -115,7 +313,7 @@ public class NomadSlave extends AbstractCloudSlave {
 
     @Override
     public Launcher createLauncher(TaskListener listener) {
-        if (template != null) {
+        if (getTemplate() != null) {
             Executor executor = Executor.currentExecutor();
             if (executor != null) {
                 Queue.Executable currentExecutable = executor.getCurrentExecutable();
@@ -134,6 +332,14 @@ public class NomadSlave extends AbstractCloudSlave {
 
     protected Object readResolve() {
         this.executables = new HashSet<>();
+        if (template != null) {
+            // Migrate agents persisted with their whole template: keep using
+            // the deserialized template, only persist a reference from now on.
+            this.resolvedTemplate = template.intern(cloudName);
+            this.templateName = template.getName();
+            this.templateHash = template.getSpecHash();
+            this.template = null;
+        }
         return this;
     }
 
@@ -170,6 +376,11 @@ public class NomadSlave extends AbstractCloudSlave {
             return;
         }
 
+        // Builds still running on the agent stop using it now
+        for (Run<?, ?> run : NomadUsageAction.getRuns(computer)) {
+            NomadUsageAction.agentReleased(run, name);
+        }
+
         // Tell the slave to stop JNLP reconnects.
         VirtualChannel ch = computer.getChannel();
         if (ch != null) {
@@ -195,6 +406,7 @@ public class NomadSlave extends AbstractCloudSlave {
         }
 
         deleteJob(listener, client);
+        NomadPlacementPlanner.capacityReleased(cloud);
 
         String msg = String.format("Disconnected computer %s", name);
         LOGGER.log(Level.INFO, msg);
@@ -206,7 +418,8 @@ public class NomadSlave extends AbstractCloudSlave {
         LOGGER.log(Level.FINE, "Deregistering job {0} from cloud {1}",
                 new Object[]{name, getCloudName()});
         try {
-            response = client.getJobsApi().deregister(name);
+            // The job may run in another region than the Nomad server's
+            response = client.getJobsApi().deregister(name, new WriteOptions(nomadRegion));
         } catch (NomadException e) {
             String msg = String.format("Failed to delete job for agent %s: %s", name,
                     e.getMessage());
@@ -255,14 +468,18 @@ public class NomadSlave extends AbstractCloudSlave {
         if (cloudName != null ? !cloudName.equals(that.cloudName) : that.cloudName != null) {
             return false;
         }
-        return template != null ? template.equals(that.template) : that.template == null;
+        if (templateName != null ? !templateName.equals(that.templateName) : that.templateName != null) {
+            return false;
+        }
+        return templateHash != null ? templateHash.equals(that.templateHash) : that.templateHash == null;
     }
 
     @Override
     public int hashCode() {
         int result = super.hashCode();
         result = 31 * result + (cloudName != null ? cloudName.hashCode() : 0);
-        result = 31 * result + (template != null ? template.hashCode() : 0);
+        result = 31 * result + (templateName != null ? templateName.hashCode() : 0);
+        result = 31 * result + (templateHash != null ? templateHash.hashCode() : 0);
         return result;
     }
 
@@ -357,8 +574,12 @@ public class NomadSlave extends AbstractCloudSlave {
         }
 
         private RetentionStrategy determineRetentionStrategy() {
-            if (jobTemplate.getIdleMinutes() == 0) {
+            if (jobTemplate.getIdleMinutes() == 0 && jobTemplate.getNumExecutors() == 1) {
                 return new OnceRetentionStrategy(cloud.getRetentionTimeout());
+            } else if (jobTemplate.getIdleMinutes() == 0) {
+                // Agents with several executors run several builds: keep them
+                // until they are idle.
+                return new CloudRetentionStrategy(cloud.getRetentionTimeout());
             } else {
                 return new CloudRetentionStrategy(jobTemplate.getIdleMinutes());
             }
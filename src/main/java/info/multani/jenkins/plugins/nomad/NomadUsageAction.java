@@ -0,0 +1,390 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.Executables;
+import hudson.model.queue.SubTask;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.RunAction2;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Resources requested and used on Nomad by a build.
+ *
+ * Each Nomad agent the build ran on is recorded when it accepts the build,
+ * with the figures collected by {@link NomadLauncher} when it started the
+ * agent. The actual usage is accumulated from the samples of
+ * {@link NomadResourceUsage} while the build runs on the agent, split evenly
+ * between the builds running on the same agent.
+ */
+@ExportedBean
+public class NomadUsageAction implements Action, RunAction2 {
+
+    private final List<AgentUsage> agents = new ArrayList<>();
+
+    private transient Run<?, ?> run;
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Nomad resource usage";
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    @Exported
+    public List<AgentUsage> getAgents() {
+        synchronized (agents) {
+            return new ArrayList<>(agents);
+        }
+    }
+
+    @Exported
+    public long getCpuMhzSeconds() {
+        return getAgents().stream().mapToLong(AgentUsage::getCpuMhzSeconds).sum();
+    }
+
+    @Exported
+    public long getMemoryMbSeconds() {
+        return getAgents().stream().mapToLong(AgentUsage::getMemoryMbSeconds).sum();
+    }
+
+    @Exported
+    public long getRequestedCpuMhzSeconds() {
+        return getAgents().stream().mapToLong(AgentUsage::getRequestedCpuMhzSeconds).sum();
+    }
+
+    @Exported
+    public long getRequestedMemoryMbSeconds() {
+        return getAgents().stream().mapToLong(AgentUsage::getRequestedMemoryMbSeconds).sum();
+    }
+
+    /**
+     * Records that a build started running on an agent.
+     *
+     * @param run the build
+     * @param agent the agent the build runs on
+     */
+    static void agentAccepted(@Nonnull Run<?, ?> run, @Nonnull NomadSlave agent) {
+        NomadUsageAction action;
+        synchronized (run) {
+            action = run.getAction(NomadUsageAction.class);
+            if (action == null) {
+                action = new NomadUsageAction();
+                run.addAction(action);
+            }
+        }
+        int executors = Math.max(1, agent.getNumExecutors());
+        AgentUsage usage = new AgentUsage(agent.getNodeName(), agent.getCloudName(),
+                agent.getNomadAllocationId(), agent.getNomadNodeId(),
+                agent.getRequestedCpu() / executors, agent.getRequestedMemory() / executors,
+                agent.getImagePullTime(), agent.getOnlineLatency(), System.currentTimeMillis());
+        synchronized (action.agents) {
+            action.agents.add(usage);
+        }
+        action.scheduleSave();
+    }
+
+    /**
+     * Records a sample of the resources used on an agent by a build.
+     *
+     * @param run the build
+     * @param agentName the name of the agent
+     * @param cpu the CPU used by the build, in MHz
+     * @param memory the memory used by the build, in MB
+     */
+    static void sampled(@Nonnull Run<?, ?> run, @Nonnull String agentName, int cpu, int memory) {
+        NomadUsageAction action = run.getAction(NomadUsageAction.class);
+        AgentUsage usage = action == null ? null : action.getRunning(agentName);
+        if (usage != null) {
+            usage.sampled(System.currentTimeMillis(), cpu, memory);
+        }
+    }
+
+    /**
+     * Records that a build stopped running on an agent.
+     *
+     * @param run the build
+     * @param agentName the name of the agent
+     */
+    static void agentReleased(@Nonnull Run<?, ?> run, @Nonnull String agentName) {
+        NomadUsageAction action = run.getAction(NomadUsageAction.class);
+        AgentUsage usage = action == null ? null : action.getRunning(agentName);
+        if (usage != null) {
+            usage.released(System.currentTimeMillis());
+            action.scheduleSave();
+        }
+    }
+
+    /**
+     * Returns the builds running on a computer.
+     */
+    @Nonnull
+    static Set<Run<?, ?>> getRuns(@Nonnull Computer computer) {
+        Set<Run<?, ?>> runs = new LinkedHashSet<>();
+        for (Executor executor : computer.getExecutors()) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            Run<?, ?> r = executable == null ? null : getRun(executable);
+            if (r != null) {
+                runs.add(r);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Returns the build an executable belongs to: the build itself, or the
+     * Pipeline build of a <code>node</code> block.
+     */
+    @CheckForNull
+    static Run<?, ?> getRun(@Nonnull Queue.Executable executable) {
+        if (executable instanceof Run) {
+            return (Run<?, ?>) executable;
+        }
+        SubTask parent = Executables.getParentOf(executable);
+        if (parent instanceof ExecutorStepExecution.PlaceholderTask) {
+            return ((ExecutorStepExecution.PlaceholderTask) parent).run();
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private AgentUsage getRunning(String agentName) {
+        synchronized (agents) {
+            for (AgentUsage usage : agents) {
+                if (usage.getAgentName().equals(agentName) && usage.getEnd() == 0) {
+                    return usage;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void scheduleSave() {
+        final Run<?, ?> r = run;
+        if (r != null) {
+            DelayedRunSaver.schedule(r);
+        }
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+        if (r.isBuilding()) {
+            return;
+        }
+        // The build completed while Jenkins was stopped, or its agents went
+        // away without releasing it: it stopped running on them at the last
+        // sample at the latest.
+        synchronized (agents) {
+            for (AgentUsage usage : agents) {
+                usage.close();
+            }
+        }
+    }
+
+    /**
+     * Resources requested and used by a build on an agent.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class AgentUsage {
+
+        private final String agentName;
+
+        private final String cloudName;
+
+        @CheckForNull
+        private final String allocationId;
+
+        @CheckForNull
+        private final String nodeId;
+
+        /**
+         * Share of the resources of the allocation requested by the build
+         */
+        private final int requestedCpu;
+
+        private final int requestedMemory;
+
+        private final long imagePullTime;
+
+        private final long onlineLatency;
+
+        private final long start;
+
+        private long end;
+
+        private long lastSample;
+
+        private long cpuMhzSeconds;
+
+        private long memoryMbSeconds;
+
+        /**
+         * Last usage sampled, used until the build stops running on the agent
+         */
+        private int lastCpu;
+
+        private int lastMemory;
+
+        AgentUsage(String agentName, String cloudName, @CheckForNull String allocationId,
+                @CheckForNull String nodeId, int requestedCpu, int requestedMemory,
+                long imagePullTime, long onlineLatency, long start) {
+            this.agentName = agentName;
+            this.cloudName = cloudName;
+            this.allocationId = allocationId;
+            this.nodeId = nodeId;
+            this.requestedCpu = requestedCpu;
+            this.requestedMemory = requestedMemory;
+            this.imagePullTime = imagePullTime;
+            this.onlineLatency = onlineLatency;
+            this.start = start;
+            this.lastSample = start;
+        }
+
+        synchronized void sampled(long timestamp, int cpu, int memory) {
+            long seconds = TimeUnit.MILLISECONDS.toSeconds(timestamp - lastSample);
+            cpuMhzSeconds += cpu * seconds;
+            memoryMbSeconds += memory * seconds;
+            lastSample = timestamp;
+            lastCpu = cpu;
+            lastMemory = memory;
+        }
+
+        synchronized void released(long timestamp) {
+            sampled(timestamp, lastCpu, lastMemory);
+            end = timestamp;
+        }
+
+        /**
+         * Records that the build stopped running on the agent at the last
+         * sample, if it is still recorded as running.
+         */
+        synchronized void close() {
+            if (end == 0) {
+                end = lastSample;
+            }
+        }
+
+        @Exported
+        public String getAgentName() {
+            return agentName;
+        }
+
+        @Exported
+        public String getCloudName() {
+            return cloudName;
+        }
+
+        @Exported
+        @CheckForNull
+        public String getAllocationId() {
+            return allocationId;
+        }
+
+        @Exported
+        @CheckForNull
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * @return the CPU requested for the build, in MHz
+         */
+        @Exported
+        public int getRequestedCpu() {
+            return requestedCpu;
+        }
+
+        /**
+         * @return the memory requested for the build, in MB
+         */
+        @Exported
+        public int getRequestedMemory() {
+            return requestedMemory;
+        }
+
+        /**
+         * @return the time spent pulling the images of the agent, in
+         * milliseconds
+         */
+        @Exported
+        public long getImagePullTime() {
+            return imagePullTime;
+        }
+
+        /**
+         * @return the time between the request of the agent and its
+         * connection, in milliseconds
+         */
+        @Exported
+        public long getOnlineLatency() {
+            return onlineLatency;
+        }
+
+        @Exported
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return when the build stopped running on the agent, or 0 if it is
+         * still running
+         */
+        @Exported
+        public synchronized long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return how long the build ran on the agent, in seconds
+         */
+        @Exported
+        public synchronized long getDuration() {
+            return TimeUnit.MILLISECONDS.toSeconds((end == 0 ? System.currentTimeMillis() : end) - start);
+        }
+
+        @Exported
+        public synchronized long getCpuMhzSeconds() {
+            return cpuMhzSeconds;
+        }
+
+        @Exported
+        public synchronized long getMemoryMbSeconds() {
+            return memoryMbSeconds;
+        }
+
+        @Exported
+        public long getRequestedCpuMhzSeconds() {
+            return requestedCpu * getDuration();
+        }
+
+        @Exported
+        public long getRequestedMemoryMbSeconds() {
+            return requestedMemory * getDuration();
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package info.multani.jenkins.plugins.nomad;
 
-import hudson.model.Computer;
 import hudson.slaves.NodeProvisioner;
 
 /**
@@ -12,7 +11,7 @@ public class StandardPlannedNodeBuilder extends PlannedNodeBuilder {
     @Override
     public NodeProvisioner.PlannedNode build() {
         return new NodeProvisioner.PlannedNode(getTemplate().getDisplayName(),
-                Computer.threadPoolForRemoting.submit(new ProvisioningCallback(getCloud(), getTemplate())),
+                getCloud().getOperationExecutor().submit(new ProvisioningCallback(getCloud(), getTemplate())),
                 getNumExecutors());
     }
 }
@@ -1,28 +1,35 @@
 package info.multani.jenkins.plugins.nomad;
 
 import com.google.common.base.Preconditions;
-import com.hashicorp.nomad.apimodel.Resources;
-import com.hashicorp.nomad.apimodel.Task;
-import com.hashicorp.nomad.apimodel.TaskArtifact;
+import com.google.common.collect.MapMaker;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.DescriptorVisibilityFilter;
-import static hudson.Util.replaceMacro;
+import hudson.util.ListBoxModel;
 import static info.multani.jenkins.plugins.nomad.NomadCloud.JNLP_NAME;
 import static info.multani.jenkins.plugins.nomad.NomadJobTemplateBuilder.substituteEnv;
 import info.multani.jenkins.plugins.nomad.model.EnvVar;
 import info.multani.jenkins.plugins.nomad.model.Auth;
+import info.multani.jenkins.plugins.nomad.model.Device;
+import info.multani.jenkins.plugins.nomad.model.DockerMount;
+import info.multani.jenkins.plugins.nomad.model.Volume;
+import info.multani.jenkins.plugins.nomad.model.VolumeMount;
 import info.multani.jenkins.plugins.nomad.pipeline.NomadJobTemplateStepExecution;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
@@ -52,20 +59,47 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     private Integer resourcesMemory;
 
-    private final List<EnvVar> envVars = new ArrayList<>();
+    private Integer resourcesCores;
+
+    private Integer resourcesMemoryMax;
+
+    private Integer ephemeralDisk;
+
+    private List<Device> devices;
+
+    private List<EnvVar> envVars = new ArrayList<>();
 
     private Auth auth;
 
     private boolean downloadAgentJar = false;
 
+    private List<Volume> volumes;
+
+    private List<VolumeMount> volumeMounts;
+
+    private List<DockerMount> dockerMounts;
+
+    private String lifecycleHook;
+
+    private boolean sidecar;
+
     private static final String DEFAULT_JNLP_IMAGE = System
             .getProperty(NomadJobTemplateStepExecution.class.getName() + ".defaultImage", "jenkins/jnlp-slave:alpine");
 
+    private static final String RUN_ENV_PREFIX = "env.";
+
     private static final List<String> DEFAULT_JNLP_ARGUMENTS = Arrays.asList("${computer.jnlpmac}", "${computer.name}");
 
-    private static final String JNLPMAC_REF = "\\$\\{computer.jnlpmac\\}";
+    /**
+     * Canonical task templates indexed by specification hash, see
+     * {@link #intern()}.
+     */
+    private static final ConcurrentMap<String, TaskTemplate> INTERNED = new MapMaker().weakValues().makeMap();
 
-    private static final String NAME_REF = "\\$\\{computer.name\\}";
+    /**
+     * Whether this is a canonical instance, which can't be modified.
+     */
+    private transient boolean interned;
 
     @DataBoundConstructor
     public TaskTemplate(String name, String image) {
@@ -91,6 +125,7 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setName(String name) {
+        checkModifiable();
         this.name = name;
     }
 
@@ -100,6 +135,7 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setImage(String image) {
+        checkModifiable();
         this.image = image;
     }
 
@@ -109,6 +145,7 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setCommand(String command) {
+        checkModifiable();
         this.command = command;
     }
 
@@ -118,6 +155,7 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setArgs(List<String> args) {
+        checkModifiable();
         this.args = args;
     }
 
@@ -132,6 +170,7 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setWorkingDir(String workingDir) {
+        checkModifiable();
         this.workingDir = workingDir;
     }
 
@@ -145,6 +184,7 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setEnvVars(List<EnvVar> envVars) {
+        checkModifiable();
         this.envVars.addAll(envVars);
     }
 
@@ -154,6 +194,7 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setAuth(Auth auth) {
+        checkModifiable();
       this.auth = auth;
     }
 
@@ -163,6 +204,7 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setResourcesCPU(Integer resourceLimitCpu) {
+        checkModifiable();
         this.resourcesCPU = resourceLimitCpu;
     }
 
@@ -172,9 +214,69 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setResourcesMemory(Integer resourcesMemory) {
+        checkModifiable();
         this.resourcesMemory = resourcesMemory;
     }
 
+    /**
+     * Number of CPU cores reserved for the task. When set, the task gets
+     * dedicated cores instead of CPU shares, and {@link #getResourcesCPU()}
+     * is ignored.
+     */
+    @CheckForNull
+    public Integer getResourcesCores() {
+        return resourcesCores;
+    }
+
+    @DataBoundSetter
+    public void setResourcesCores(Integer resourcesCores) {
+        checkModifiable();
+        this.resourcesCores = resourcesCores == null || resourcesCores <= 0 ? null : resourcesCores;
+    }
+
+    /**
+     * Memory the task may use above {@link #getResourceMemory()} when the
+     * Nomad client has some available, in MB.
+     */
+    @CheckForNull
+    public Integer getResourcesMemoryMax() {
+        return resourcesMemoryMax;
+    }
+
+    @DataBoundSetter
+    public void setResourcesMemoryMax(Integer resourcesMemoryMax) {
+        checkModifiable();
+        this.resourcesMemoryMax = resourcesMemoryMax == null || resourcesMemoryMax <= 0 ? null : resourcesMemoryMax;
+    }
+
+    /**
+     * Size of the ephemeral disk of the task group, in MB.
+     */
+    @CheckForNull
+    public Integer getEphemeralDisk() {
+        return ephemeralDisk;
+    }
+
+    @DataBoundSetter
+    public void setEphemeralDisk(Integer ephemeralDisk) {
+        checkModifiable();
+        this.ephemeralDisk = ephemeralDisk == null || ephemeralDisk <= 0 ? null : ephemeralDisk;
+    }
+
+    /**
+     * Devices, such as GPUs, requested by the task.
+     */
+    @Nonnull
+    public List<Device> getDevices() {
+        return devices == null ? Collections.emptyList() : devices;
+    }
+
+    @DataBoundSetter
+    public void setDevices(List<Device> devices) {
+        checkModifiable();
+        this.devices = devices == null ? null : new ArrayList<>(devices);
+    }
+
     public Map<String, Object> getAsArgs() {
         Map<String, Object> argMap = new TreeMap<>();
         argMap.put("name", name);
@@ -187,98 +289,314 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     @DataBoundSetter
     public void setDownloadAgentJar(boolean downloadAgentJar) {
+        checkModifiable();
         this.downloadAgentJar = downloadAgentJar;
     }
 
-    public TaskTemplate buildExecutionTaskTemplate(Map<String, String> runEnvVars) {
-        final Map<String, String> envVars = runEnvVars.entrySet().stream().collect(Collectors.toMap(
-            ent -> "env." + ent.getKey(),
-            ent -> ent.getValue()
-        ));
+    /**
+     * Volumes requested by the task group of this task.
+     */
+    @Nonnull
+    public List<Volume> getVolumes() {
+        return volumes == null ? Collections.emptyList() : volumes;
+    }
+
+    @DataBoundSetter
+    public void setVolumes(List<Volume> volumes) {
+        checkModifiable();
+        this.volumes = volumes == null ? null : new ArrayList<>(volumes);
+    }
+
+    /**
+     * Volumes of the task group mounted in this task.
+     */
+    @Nonnull
+    public List<VolumeMount> getVolumeMounts() {
+        return volumeMounts == null ? Collections.emptyList() : volumeMounts;
+    }
+
+    @DataBoundSetter
+    public void setVolumeMounts(List<VolumeMount> volumeMounts) {
+        checkModifiable();
+        this.volumeMounts = volumeMounts == null ? null : new ArrayList<>(volumeMounts);
+    }
+
+    /**
+     * Mounts handled by the Docker driver.
+     */
+    @Nonnull
+    public List<DockerMount> getDockerMounts() {
+        return dockerMounts == null ? Collections.emptyList() : dockerMounts;
+    }
 
+    @DataBoundSetter
+    public void setDockerMounts(List<DockerMount> dockerMounts) {
+        checkModifiable();
+        this.dockerMounts = dockerMounts == null ? null : new ArrayList<>(dockerMounts);
+    }
+
+    /**
+     * When the task runs relatively to the main tasks of its task group:
+     * <code>prestart</code>, <code>poststart</code> or <code>poststop</code>.
+     * Null for a main task.
+     */
+    @CheckForNull
+    public String getLifecycleHook() {
+        return lifecycleHook;
+    }
+
+    @DataBoundSetter
+    public void setLifecycleHook(String lifecycleHook) {
+        checkModifiable();
+        this.lifecycleHook = Util.fixEmptyAndTrim(lifecycleHook);
+    }
+
+    /**
+     * Whether a task with a lifecycle hook keeps running alongside the main
+     * tasks, instead of running to completion.
+     */
+    public boolean isSidecar() {
+        return sidecar;
+    }
+
+    @DataBoundSetter
+    public void setSidecar(boolean sidecar) {
+        checkModifiable();
+        this.sidecar = sidecar;
+    }
+
+    public TaskTemplate buildExecutionTaskTemplate(Map<String, String> runEnvVars) {
+        // Jenkins environment variables are referenced as ${env.NAME}
+        final Function<String, String> envVars = name -> name.startsWith(RUN_ENV_PREFIX)
+                ? runEnvVars.get(name.substring(RUN_ENV_PREFIX.length()))
+                : null;
 
         TaskTemplate oth = new TaskTemplate(
             this.getName(),
-            replaceMacro(this.getImage(), envVars),
-            replaceMacro(this.getCommand(), envVars),
-            this.getArgs().stream().map(arg -> replaceMacro(arg, envVars)).collect(Collectors.toList()),
+            Macro.render(this.getImage(), envVars),
+            Macro.render(this.getCommand(), envVars),
+            this.getArgs().stream().map(arg -> Macro.render(arg, envVars)).collect(Collectors.toList()),
             this.getAuth()
         );
 
         oth.setWorkingDir(this.getWorkingDir());
         oth.setEnvVars(
             this.getEnvVars().stream()
-            .map(ev -> new EnvVar(ev.getKey(), replaceMacro(ev.getValue(), envVars)))
+            .map(ev -> new EnvVar(ev.getKey(), Macro.render(ev.getValue(), envVars)))
             .collect(Collectors.toList())
         );
         oth.setResourcesCPU(this.getResourcesCPU());
         oth.setResourcesMemory(this.getResourceMemory());
+        oth.setResourcesCores(this.getResourcesCores());
+        oth.setResourcesMemoryMax(this.getResourcesMemoryMax());
+        oth.setEphemeralDisk(this.getEphemeralDisk());
+        oth.setDevices(this.getDevices());
         oth.setDownloadAgentJar(this.shouldDownloadAgentJar());
+        oth.setVolumes(this.getVolumes());
+        oth.setVolumeMounts(this.getVolumeMounts());
+        oth.setDockerMounts(this.getDockerMounts());
+        oth.setLifecycleHook(this.getLifecycleHook());
+        oth.setSidecar(this.isSidecar());
 
         return oth;
     }
 
-    public Task build(NomadSlave slave, Map<String, String> globalEnvVars) {
-        Map<String, String> envVars = new HashMap<>();
-        NomadCloud cloud = slave.getNomadCloud();
+    /**
+     * Returns the canonical instance of this task template, shared by all the
+     * task templates with the same specification. The canonical instance is a
+     * copy which can't be modified: its setters throw
+     * {@link UnsupportedOperationException}.
+     *
+     * @return the canonical instance of this task template.
+     */
+    public TaskTemplate intern() {
+        if (interned) {
+            return this;
+        }
+        StringBuilder sb = new StringBuilder();
+        appendSpec(sb);
+        String key = Util.getDigestOf(sb.toString());
+        TaskTemplate existing = INTERNED.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        TaskTemplate copy = internedCopy();
+        existing = INTERNED.putIfAbsent(key, copy);
+        return existing == null ? copy : existing;
+    }
 
-        List<String> arguments = this.getArgs().stream()
-                .map(e -> e.replaceAll(JNLPMAC_REF, slave.getComputer().getJnlpMac())
-                .replaceAll(NAME_REF, slave.getComputer().getName())
-                )
-                .collect(Collectors.toList());
+    /**
+     * Returns a copy of this task template which can't be modified: its
+     * setters throw {@link UnsupportedOperationException} and its lists are
+     * unmodifiable.
+     */
+    private TaskTemplate internedCopy() {
+        TaskTemplate copy = new TaskTemplate(name, image, command, unmodifiable(args), auth);
+        copy.workingDir = workingDir;
+        copy.resourcesCPU = resourcesCPU;
+        copy.resourcesMemory = resourcesMemory;
+        copy.resourcesCores = resourcesCores;
+        copy.resourcesMemoryMax = resourcesMemoryMax;
+        copy.ephemeralDisk = ephemeralDisk;
+        copy.devices = unmodifiable(devices);
+        copy.envVars = unmodifiable(envVars);
+        copy.downloadAgentJar = downloadAgentJar;
+        copy.volumes = unmodifiable(volumes);
+        copy.volumeMounts = unmodifiable(volumeMounts);
+        copy.dockerMounts = unmodifiable(dockerMounts);
+        copy.lifecycleHook = lifecycleHook;
+        copy.sidecar = sidecar;
+        copy.interned = true;
+        return copy;
+    }
 
-        envVars.putAll(globalEnvVars);
+    static <T> List<T> unmodifiable(List<T> list) {
+        return list == null ? null : Collections.unmodifiableList(new ArrayList<>(list));
+    }
 
-        if (this.getEnvVars() != null) {
-            this.getEnvVars().forEach(item
-                    -> envVars.put(item.getKey(), item.getValue())
-            );
+    private void checkModifiable() {
+        if (interned) {
+            throw new UnsupportedOperationException("Task template " + name + " is shared and can't be modified");
         }
+    }
 
-        Task task = new Task();
-        task.setName(substituteEnv(this.getName()));
-        task.setDriver("docker");
-        task.addConfig("image", substituteEnv(getImage()));
-        task.addConfig("command", substituteEnv(this.getCommand()));
-        task.addConfig("args", arguments);
-        task.addConfig("network_mode", "host");
-        if (auth != null) {
-          Map<String, Object> authMap = new HashMap<>();
-          if (auth.getUsername() != "") {
-            authMap.put("username", substituteEnv(auth.getUsername()));
-          }
-          if (auth.getPassword() != "") {
-            authMap.put("password", substituteEnv(auth.getPassword()));
-          }
-          if (auth.getServerAddress() != "") {
-            authMap.put("server_address", substituteEnv(auth.getServerAddress()));
-          }
+    void appendSpec(StringBuilder sb) {
+        sb.append("task=").append(name).append('\n');
+        sb.append("  image=").append(image).append('\n');
+        sb.append("  workingDir=").append(workingDir).append('\n');
+        sb.append("  command=").append(command).append('\n');
+        sb.append("  args=").append(getArgs()).append('\n');
+        sb.append("  cpu=").append(resourcesCPU).append('\n');
+        sb.append("  memory=").append(resourcesMemory).append('\n');
+        sb.append("  cores=").append(resourcesCores).append('\n');
+        sb.append("  memoryMax=").append(resourcesMemoryMax).append('\n');
+        sb.append("  ephemeralDisk=").append(ephemeralDisk).append('\n');
+        sb.append("  devices=").append(getDevices()).append('\n');
+        sb.append("  env=").append(NomadJobTemplate.normalizeEnvVars(getEnvVars())).append('\n');
+        sb.append("  auth=").append(auth).append('\n');
+        sb.append("  downloadAgentJar=").append(downloadAgentJar).append('\n');
+        sb.append("  volumes=").append(getVolumes()).append('\n');
+        sb.append("  volumeMounts=").append(getVolumeMounts()).append('\n');
+        sb.append("  dockerMounts=").append(getDockerMounts()).append('\n');
+        sb.append("  lifecycleHook=").append(lifecycleHook).append('\n');
+        sb.append("  sidecar=").append(sidecar).append('\n');
+    }
+
+    /**
+     * Compiles the agent-independent part of the task.
+     *
+     * @param cloud the cloud the task will run in
+     * @param globalEnvVars the environment variables set on all the tasks
+     * @param globalVolumes the volumes requested by all the task groups
+     * @param globalVolumeMounts the volumes mounted in all the tasks
+     * @param executors the number of executors of the agent, by which the
+     * resources are multiplied
+     * @return the compiled task
+     */
+    CompiledJobTemplate.CompiledTask compile(NomadCloud cloud, Map<String, String> globalEnvVars,
+            List<Volume> globalVolumes, List<VolumeMount> globalVolumeMounts, int executors) {
+        Map<String, String> envVars = new HashMap<>(globalEnvVars);
+        this.getEnvVars().forEach(item
+                -> envVars.put(item.getKey(), item.getValue())
+        );
+
+        // Volumes of the task override the global volumes of the same name
+        Map<String, Map<String, Object>> volumesConfig = new LinkedHashMap<>();
+        for (Volume volume : globalVolumes) {
+            volumesConfig.put(volume.getName(), CompiledJobTemplate.getVolumeConfig(volume));
+        }
+        for (Volume volume : getVolumes()) {
+            volumesConfig.put(volume.getName(), CompiledJobTemplate.getVolumeConfig(volume));
+        }
 
-          task.addConfig("auth", authMap);
+        List<Map<String, Object>> volumeMountsConfig = new ArrayList<>();
+        for (VolumeMount mount : globalVolumeMounts) {
+            volumeMountsConfig.add(CompiledJobTemplate.getVolumeMountConfig(mount));
+        }
+        for (VolumeMount mount : getVolumeMounts()) {
+            volumeMountsConfig.add(CompiledJobTemplate.getVolumeMountConfig(mount));
         }
 
-        if (shouldDownloadAgentJar()) {
-            TaskArtifact artifact = new TaskArtifact()
-                    .setGetterSource(cloud.getSlaveUrl())
-                    .setRelativeDest("/local/");
-            task.addArtifacts(artifact);
+        List<Map<String, Object>> dockerMountsConfig = new ArrayList<>();
+        for (DockerMount mount : getDockerMounts()) {
+            dockerMountsConfig.add(CompiledJobTemplate.getDockerMountConfig(mount));
         }
 
-        task.setEnv(envVars);
+        List<Map<String, Object>> devicesConfig = new ArrayList<>();
+        for (Device device : getDevices()) {
+            Map<String, Object> deviceConfig = new HashMap<>();
+            deviceConfig.put("Name", device.getName());
+            deviceConfig.put("Count", device.getCount() * executors);
+            devicesConfig.add(deviceConfig);
+        }
 
-        Resources resources = new Resources()
-                .setCpu(this.getResourcesCPU())
-                .setMemoryMb(this.getResourceMemory());
-        task.setResources(resources);
+        CompiledJobTemplate.CompiledResources resources = new CompiledJobTemplate.CompiledResources(
+                scale(this.getResourcesCPU(), executors),
+                scale(this.getResourceMemory(), executors),
+                scale(this.getResourcesCores(), executors),
+                scale(this.getResourcesMemoryMax(), executors),
+                devicesConfig,
+                this.getEphemeralDisk());
+
+        return new CompiledJobTemplate.CompiledTask(
+                substituteEnv(this.getName()),
+                substituteEnv(getImage()),
+                substituteEnv(this.getCommand()),
+                this.getArgs(),
+                envVars,
+                getAuthConfig(auth),
+                shouldDownloadAgentJar() ? cloud.getSlaveUrl() : null,
+                shouldDownloadAgentJar() ? NomadAgentJar.getChecksum() : null,
+                resources,
+                volumesConfig,
+                volumeMountsConfig,
+                dockerMountsConfig,
+                lifecycleHook,
+                sidecar);
+    }
 
-        return task;
+    private static Integer scale(Integer resource, int executors) {
+        return resource == null ? null : resource * executors;
+    }
+
+    /**
+     * Returns the Docker driver authentication settings.
+     *
+     * @param auth the authentication settings of a task template
+     * @return the Docker driver "auth" configuration, or null if no
+     * authentication is required
+     */
+    static Map<String, Object> getAuthConfig(Auth auth) {
+        if (auth == null) {
+            return null;
+        }
+        Map<String, Object> authMap = new HashMap<>();
+        if (!auth.getUsername().isEmpty()) {
+            authMap.put("username", substituteEnv(auth.getUsername()));
+        }
+        if (!auth.getPassword().isEmpty()) {
+            authMap.put("password", substituteEnv(auth.getPassword()));
+        }
+        if (!auth.getServerAddress().isEmpty()) {
+            authMap.put("server_address", substituteEnv(auth.getServerAddress()));
+        }
+        return authMap;
     }
 
     @Extension
     @Symbol("taskTemplate")
     public static class DescriptorImpl extends Descriptor<TaskTemplate> {
 
+        @SuppressWarnings("unused") // Used by jelly
+        @Restricted(DoNotUse.class) // Used by jelly
+        public ListBoxModel doFillLifecycleHookItems() {
+            return new ListBoxModel(
+                    new ListBoxModel.Option("None (main task)", ""),
+                    new ListBoxModel.Option("prestart", "prestart"),
+                    new ListBoxModel.Option("poststart", "poststart"),
+                    new ListBoxModel.Option("poststop", "poststop"));
+        }
+
         @Override
         public String getDisplayName() {
             return "Task Template";
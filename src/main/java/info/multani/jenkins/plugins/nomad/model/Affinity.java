@@ -0,0 +1,115 @@
+package info.multani.jenkins.plugins.nomad.model;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import java.io.Serializable;
+import java.util.Objects;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Makes the agents prefer, or avoid, some Nomad clients, see the
+ * <a href="https://www.nomadproject.io/docs/job-specification/affinity">affinity stanza</a>.
+ */
+public class Affinity extends AbstractDescribableImpl<Affinity>
+        implements Serializable, ExtensionPoint {
+
+    private static final long serialVersionUID = 2870417536902547714L;
+
+    public static final int DEFAULT_WEIGHT = 50;
+
+    private final String attribute;
+    private String operator = Constraint.DEFAULT_OPERATOR;
+    private String value;
+    private int weight = DEFAULT_WEIGHT;
+
+    @DataBoundConstructor
+    public Affinity(String attribute) {
+        this.attribute = Util.fixEmptyAndTrim(attribute);
+    }
+
+    /**
+     * The attribute of the client to compare, for example
+     * <code>${node.class}</code>.
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public String getOperator() {
+        return operator == null ? Constraint.DEFAULT_OPERATOR : operator;
+    }
+
+    @DataBoundSetter
+    public void setOperator(String operator) {
+        this.operator = Util.fixEmptyAndTrim(operator);
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @DataBoundSetter
+    public void setValue(String value) {
+        this.value = Util.fixEmptyAndTrim(value);
+    }
+
+    /**
+     * Weight of the affinity, between -100 and 100: negative weights make
+     * the agents avoid the matching clients.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    @DataBoundSetter
+    public void setWeight(int weight) {
+        this.weight = Math.max(-100, Math.min(weight, 100));
+    }
+
+    @Override
+    public String toString() {
+        return "Affinity[attribute=" + attribute + ", operator=" + getOperator() + ", value=" + value
+                + ", weight=" + weight + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(attribute, getOperator(), value, weight);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Affinity)) {
+            return false;
+        }
+        Affinity other = (Affinity) obj;
+        return Objects.equals(attribute, other.attribute)
+                && Objects.equals(getOperator(), other.getOperator())
+                && Objects.equals(value, other.value)
+                && weight == other.weight;
+    }
+
+    @Extension
+    @Symbol("affinity")
+    public static class DescriptorImpl extends Descriptor<Affinity> {
+
+        @Override
+        public String getDisplayName() {
+            return "Affinity";
+        }
+
+        @SuppressWarnings("unused") // Used by jelly
+        public ListBoxModel doFillOperatorItems() {
+            return Constraint.getOperatorItems();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package info.multani.jenkins.plugins.nomad.model;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import java.io.Serializable;
+import java.util.Objects;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Restricts the Nomad clients the agents can be placed on, see the
+ * <a href="https://www.nomadproject.io/docs/job-specification/constraint">constraint stanza</a>.
+ */
+public class Constraint extends AbstractDescribableImpl<Constraint>
+        implements Serializable, ExtensionPoint {
+
+    private static final long serialVersionUID = -5920314753816325419L;
+
+    public static final String DEFAULT_OPERATOR = "=";
+
+    /**
+     * Operators of the constraints and affinities.
+     */
+    static final String[] OPERATORS = {
+        "=", "!=", ">", ">=", "<", "<=", "regexp", "set_contains", "set_contains_all", "set_contains_any",
+        "version", "semver", "is_set", "is_not_set", "distinct_hosts", "distinct_property",
+    };
+
+    private final String attribute;
+    private String operator = DEFAULT_OPERATOR;
+    private String value;
+
+    @DataBoundConstructor
+    public Constraint(String attribute) {
+        this.attribute = Util.fixEmptyAndTrim(attribute);
+    }
+
+    /**
+     * The attribute of the client to compare, for example
+     * <code>${node.class}</code>.
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public String getOperator() {
+        return operator == null ? DEFAULT_OPERATOR : operator;
+    }
+
+    @DataBoundSetter
+    public void setOperator(String operator) {
+        this.operator = Util.fixEmptyAndTrim(operator);
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @DataBoundSetter
+    public void setValue(String value) {
+        this.value = Util.fixEmptyAndTrim(value);
+    }
+
+    static ListBoxModel getOperatorItems() {
+        ListBoxModel items = new ListBoxModel();
+        for (String operator : OPERATORS) {
+            items.add(operator);
+        }
+        return items;
+    }
+
+    @Override
+    public String toString() {
+        return "Constraint[attribute=" + attribute + ", operator=" + getOperator() + ", value=" + value + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(attribute, getOperator(), value);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Constraint)) {
+            return false;
+        }
+        Constraint other = (Constraint) obj;
+        return Objects.equals(attribute, other.attribute)
+                && Objects.equals(getOperator(), other.getOperator())
+                && Objects.equals(value, other.value);
+    }
+
+    @Extension
+    @Symbol("constraint")
+    public static class DescriptorImpl extends Descriptor<Constraint> {
+
+        @Override
+        public String getDisplayName() {
+            return "Constraint";
+        }
+
+        @SuppressWarnings("unused") // Used by jelly
+        public ListBoxModel doFillOperatorItems() {
+            return getOperatorItems();
+        }
+    }
+}
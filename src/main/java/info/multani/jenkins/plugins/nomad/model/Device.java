@@ -0,0 +1,79 @@
+package info.multani.jenkins.plugins.nomad.model;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.io.Serializable;
+import java.util.Objects;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * A device requested by a task, see the
+ * <a href="https://www.nomadproject.io/docs/job-specification/device">device stanza</a>.
+ */
+public class Device extends AbstractDescribableImpl<Device>
+        implements Serializable, ExtensionPoint {
+
+    private static final long serialVersionUID = 8311275530712960528L;
+
+    private final String name;
+    private int count = 1;
+
+    @DataBoundConstructor
+    public Device(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Name of the device, as <code>&lt;vendor&gt;/&lt;type&gt;/&lt;model&gt;</code>,
+     * where the vendor and the model may be omitted. For example
+     * <code>nvidia/gpu</code>.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @DataBoundSetter
+    public void setCount(int count) {
+        this.count = Math.max(1, count);
+    }
+
+    @Override
+    public String toString() {
+        return "Device[name=" + name + ", count=" + count + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, count);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Device)) {
+            return false;
+        }
+        Device other = (Device) obj;
+        return Objects.equals(name, other.name) && count == other.count;
+    }
+
+    @Extension
+    @Symbol("device")
+    public static class DescriptorImpl extends Descriptor<Device> {
+
+        @Override
+        public String getDisplayName() {
+            return "Device";
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package info.multani.jenkins.plugins.nomad.model;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import java.io.Serializable;
+import java.util.Objects;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * A mount handled by the Docker driver itself, see the
+ * <a href="https://www.nomadproject.io/docs/drivers/docker#mounts">mounts</a>
+ * option of the Docker driver: a Docker named volume, a bind mount of a host
+ * path or a tmpfs.
+ */
+public class DockerMount extends AbstractDescribableImpl<DockerMount>
+        implements Serializable, ExtensionPoint {
+
+    private static final long serialVersionUID = -1459010562830113127L;
+
+    public static final String TYPE_VOLUME = "volume";
+
+    public static final String TYPE_BIND = "bind";
+
+    public static final String TYPE_TMPFS = "tmpfs";
+
+    private final String target;
+    private String type = TYPE_VOLUME;
+    private String source;
+    private boolean readOnly;
+
+    @DataBoundConstructor
+    public DockerMount(String target) {
+        this.target = target;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getType() {
+        return type == null ? TYPE_VOLUME : type;
+    }
+
+    @DataBoundSetter
+    public void setType(String type) {
+        this.type = Util.fixEmptyAndTrim(type);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @DataBoundSetter
+    public void setSource(String source) {
+        this.source = Util.fixEmptyAndTrim(source);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @DataBoundSetter
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public String toString() {
+        return "DockerMount[type=" + getType() + ", source=" + source + ", target=" + target
+                + ", readOnly=" + readOnly + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getType(), source, target, readOnly);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DockerMount)) {
+            return false;
+        }
+        DockerMount other = (DockerMount) obj;
+        return Objects.equals(getType(), other.getType())
+                && Objects.equals(source, other.source)
+                && Objects.equals(target, other.target)
+                && readOnly == other.readOnly;
+    }
+
+    @Extension
+    @Symbol("dockerMount")
+    public static class DescriptorImpl extends Descriptor<DockerMount> {
+
+        @Override
+        public String getDisplayName() {
+            return "Docker Mount";
+        }
+
+        @SuppressWarnings("unused") // Used by jelly
+        public ListBoxModel doFillTypeItems() {
+            return new ListBoxModel(
+                    new ListBoxModel.Option("Docker volume", TYPE_VOLUME),
+                    new ListBoxModel.Option("Bind mount", TYPE_BIND),
+                    new ListBoxModel.Option("tmpfs", TYPE_TMPFS));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package info.multani.jenkins.plugins.nomad.model;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Spreads the agents over the values of an attribute of the Nomad clients,
+ * see the
+ * <a href="https://www.nomadproject.io/docs/job-specification/spread">spread stanza</a>.
+ */
+public class Spread extends AbstractDescribableImpl<Spread>
+        implements Serializable, ExtensionPoint {
+
+    private static final long serialVersionUID = -2184412638153629018L;
+
+    public static final int DEFAULT_WEIGHT = 50;
+
+    private final String attribute;
+    private int weight = DEFAULT_WEIGHT;
+    private String targets;
+
+    @DataBoundConstructor
+    public Spread(String attribute) {
+        this.attribute = Util.fixEmptyAndTrim(attribute);
+    }
+
+    /**
+     * The attribute of the client to spread over, for example
+     * <code>${node.datacenter}</code>.
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Weight of the spread, between 0 and 100.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    @DataBoundSetter
+    public void setWeight(int weight) {
+        this.weight = Math.max(0, Math.min(weight, 100));
+    }
+
+    /**
+     * Share of the agents per value of the attribute, as
+     * <code>value=percent</code> separated by commas, for example
+     * <code>dc1=70, dc2=30</code>. The agents are spread evenly when not set.
+     */
+    public String getTargets() {
+        return targets;
+    }
+
+    @DataBoundSetter
+    public void setTargets(String targets) {
+        this.targets = Util.fixEmptyAndTrim(targets);
+    }
+
+    /**
+     * @return the share of the agents, in percent, indexed by value of the
+     * attribute
+     */
+    public Map<String, Integer> getTargetsMap() {
+        Map<String, Integer> map = new LinkedHashMap<>();
+        if (targets == null) {
+            return map;
+        }
+        for (String target : targets.split(",")) {
+            String[] parts = target.split("=", 2);
+            if (parts.length == 2 && !parts[0].trim().isEmpty()) {
+                try {
+                    map.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+                } catch (NumberFormatException e) {
+                    // Ignore the malformed targets
+                }
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "Spread[attribute=" + attribute + ", weight=" + weight + ", targets=" + targets + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(attribute, weight, targets);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Spread)) {
+            return false;
+        }
+        Spread other = (Spread) obj;
+        return Objects.equals(attribute, other.attribute)
+                && weight == other.weight
+                && Objects.equals(targets, other.targets);
+    }
+
+    @Extension
+    @Symbol("spread")
+    public static class DescriptorImpl extends Descriptor<Spread> {
+
+        @Override
+        public String getDisplayName() {
+            return "Spread";
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package info.multani.jenkins.plugins.nomad.model;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import java.io.Serializable;
+import java.util.Objects;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * A Nomad volume requested by a task group, see the
+ * <a href="https://www.nomadproject.io/docs/job-specification/volume">volume stanza</a>.
+ */
+public class Volume extends AbstractDescribableImpl<Volume>
+        implements Serializable, ExtensionPoint {
+
+    private static final long serialVersionUID = -3212964417563017285L;
+
+    public static final String TYPE_HOST = "host";
+
+    public static final String TYPE_CSI = "csi";
+
+    public static final String DEFAULT_ACCESS_MODE = "multi-node-multi-writer";
+
+    public static final String DEFAULT_ATTACHMENT_MODE = "file-system";
+
+    private final String name;
+    private final String source;
+    private String type = TYPE_HOST;
+    private boolean readOnly;
+    private boolean perAlloc;
+    private String accessMode;
+    private String attachmentMode;
+
+    @DataBoundConstructor
+    public Volume(String name, String source) {
+        this.name = name;
+        this.source = source;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getType() {
+        return type == null ? TYPE_HOST : type;
+    }
+
+    @DataBoundSetter
+    public void setType(String type) {
+        this.type = Util.fixEmptyAndTrim(type);
+    }
+
+    public boolean isCsi() {
+        return TYPE_CSI.equals(getType());
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @DataBoundSetter
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Whether each allocation gets its own CSI volume, named after the source
+     * and suffixed with the allocation index.
+     */
+    public boolean isPerAlloc() {
+        return perAlloc;
+    }
+
+    @DataBoundSetter
+    public void setPerAlloc(boolean perAlloc) {
+        this.perAlloc = perAlloc;
+    }
+
+    public String getAccessMode() {
+        return accessMode == null ? DEFAULT_ACCESS_MODE : accessMode;
+    }
+
+    @DataBoundSetter
+    public void setAccessMode(String accessMode) {
+        this.accessMode = Util.fixEmptyAndTrim(accessMode);
+    }
+
+    public String getAttachmentMode() {
+        return attachmentMode == null ? DEFAULT_ATTACHMENT_MODE : attachmentMode;
+    }
+
+    @DataBoundSetter
+    public void setAttachmentMode(String attachmentMode) {
+        this.attachmentMode = Util.fixEmptyAndTrim(attachmentMode);
+    }
+
+    @Override
+    public String toString() {
+        return "Volume[name=" + name + ", type=" + getType() + ", source=" + source
+                + ", readOnly=" + readOnly + ", perAlloc=" + perAlloc
+                + ", accessMode=" + getAccessMode() + ", attachmentMode=" + getAttachmentMode() + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, getType(), source, readOnly, perAlloc, getAccessMode(), getAttachmentMode());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Volume)) {
+            return false;
+        }
+        Volume other = (Volume) obj;
+        return Objects.equals(name, other.name)
+                && Objects.equals(getType(), other.getType())
+                && Objects.equals(source, other.source)
+                && readOnly == other.readOnly
+                && perAlloc == other.perAlloc
+                && Objects.equals(getAccessMode(), other.getAccessMode())
+                && Objects.equals(getAttachmentMode(), other.getAttachmentMode());
+    }
+
+    @Extension
+    @Symbol("volume")
+    public static class DescriptorImpl extends Descriptor<Volume> {
+
+        @Override
+        public String getDisplayName() {
+            return "Volume";
+        }
+
+        @SuppressWarnings("unused") // Used by jelly
+        public ListBoxModel doFillTypeItems() {
+            return new ListBoxModel(
+                    new ListBoxModel.Option("Host volume", TYPE_HOST),
+                    new ListBoxModel.Option("CSI volume", TYPE_CSI));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package info.multani.jenkins.plugins.nomad.model;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.io.Serializable;
+import java.util.Objects;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Mounts a {@link Volume} of the task group in a task, see the
+ * <a href="https://www.nomadproject.io/docs/job-specification/volume_mount">volume_mount stanza</a>.
+ */
+public class VolumeMount extends AbstractDescribableImpl<VolumeMount>
+        implements Serializable, ExtensionPoint {
+
+    private static final long serialVersionUID = 6630862390187393215L;
+
+    private final String volume;
+    private final String destination;
+    private boolean readOnly;
+
+    @DataBoundConstructor
+    public VolumeMount(String volume, String destination) {
+        this.volume = volume;
+        this.destination = destination;
+    }
+
+    public String getVolume() {
+        return volume;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @DataBoundSetter
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public String toString() {
+        return "VolumeMount[volume=" + volume + ", destination=" + destination + ", readOnly=" + readOnly + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(volume, destination, readOnly);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof VolumeMount)) {
+            return false;
+        }
+        VolumeMount other = (VolumeMount) obj;
+        return Objects.equals(volume, other.volume)
+                && Objects.equals(destination, other.destination)
+                && readOnly == other.readOnly;
+    }
+
+    @Extension
+    @Symbol("volumeMount")
+    public static class DescriptorImpl extends Descriptor<VolumeMount> {
+
+        @Override
+        public String getDisplayName() {
+            return "Volume Mount";
+        }
+    }
+}
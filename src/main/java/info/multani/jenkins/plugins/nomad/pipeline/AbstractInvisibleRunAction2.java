@@ -25,7 +25,7 @@
 package info.multani.jenkins.plugins.nomad.pipeline;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
-import hudson.BulkChange;
+import info.multani.jenkins.plugins.nomad.DelayedRunSaver;
 import hudson.model.InvisibleAction;
 import hudson.model.Run;
 import java.io.IOException;
@@ -38,6 +38,11 @@ public abstract class AbstractInvisibleRunAction2 extends InvisibleAction implem
 
     private static final Logger LOGGER = Logger.getLogger(AbstractInvisibleRunAction2.class.getName());
 
+    /**
+     * Only modified while holding the lock of the run, like
+     * {@link Run#save()}, so that the run is never saved while the stack is
+     * modified.
+     */
     protected final Stack<String> stack = new Stack<>();
 
     protected transient Run<?, ?> run;
@@ -52,23 +57,36 @@ public abstract class AbstractInvisibleRunAction2 extends InvisibleAction implem
 
     protected static void push(@NonNull Run<?, ?> run, @NonNull Class<? extends AbstractInvisibleRunAction2> clazz,
             @NonNull String item) throws IOException {
+        AbstractInvisibleRunAction2 action;
         synchronized (run) {
-            BulkChange bc = new BulkChange(run);
-            try {
-                AbstractInvisibleRunAction2 action = run.getAction(clazz);
-                if (action == null) {
+            action = run.getAction(clazz);
+            if (action == null) {
+                try {
                     action = clazz.newInstance();
-                    run.addAction(action);
+                } catch (InstantiationException | IllegalAccessException e) {
+                    throw new RuntimeException("Can not instantiate class " + clazz, e);
                 }
-                LOGGER.log(Level.FINEST, "Pushing item {0} to action {1} in run {2}",
-                        new Object[] { item, action, run });
-                action.stack.push(item);
-                bc.commit();
-            } catch (InstantiationException | IllegalAccessException e) {
-                throw new RuntimeException("Can not instantiate class " + clazz, e);
-            } finally {
-                bc.abort();
+                run.addAction(action);
             }
+            if (action.run == null) {
+                action.setRun(run);
+            }
+            LOGGER.log(Level.FINEST, "Pushing item {0} to action {1} in run {2}",
+                    new Object[] { item, action, run });
+            action.stack.push(item);
+        }
+        action.scheduleSave();
+    }
+
+    /**
+     * Saves the run in the background. The stack is kept in memory and
+     * several modifications happening in a short time only lead to a single
+     * write of the run.
+     */
+    protected void scheduleSave() {
+        final Run<?, ?> r = run;
+        if (r != null) {
+            DelayedRunSaver.schedule(r);
         }
     }
 
@@ -1,7 +1,6 @@
 package info.multani.jenkins.plugins.nomad.pipeline;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
-import hudson.BulkChange;
 import hudson.model.Run;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -26,28 +25,64 @@ public class NomadJobTemplateAction extends AbstractInvisibleRunAction2 implemen
         AbstractInvisibleRunAction2.push(run, NomadJobTemplateAction.class, item);
     }
 
+    /**
+     * Removes a template from the templates of a run.
+     *
+     * With <code>parallel</code> branches, the templates don't end in the
+     * reverse order they started in: each step removes its own template, not
+     * the template on top of the stack.
+     *
+     * @param run the run the template has been pushed to
+     * @param item the name of the template to remove
+     * @return true if the template has been removed
+     */
+    protected static boolean remove(@NonNull Run<?, ?> run, @NonNull String item) {
+        NomadJobTemplateAction action = run.getAction(NomadJobTemplateAction.class);
+        if (action == null) {
+            return false;
+        }
+        return action.removeItem(run, item);
+    }
+
+    protected static String pop(@NonNull Run<?, ?> run) {
+        NomadJobTemplateAction action = run.getAction(NomadJobTemplateAction.class);
+        if (action == null) {
+            return null;
+        }
+        return action.popItem(run);
+    }
+
     @Deprecated
     public String pop() throws IOException {
         if (run == null) {
             LOGGER.warning("run is null, cannot pop");
             return null;
         }
+        return pop(run);
+    }
+
+    private boolean removeItem(Run<?, ?> run, String template) {
+        synchronized (run) {
+            int index = stack.lastIndexOf(template);
+            if (index < 0) {
+                return false;
+            }
+            stack.remove(index);
+        }
+        scheduleSave();
+        return true;
+    }
+
+    private String popItem(Run<?, ?> run) {
+        String template;
         synchronized (run) {
-            BulkChange bc = new BulkChange(run);
-            try {
-                NomadJobTemplateAction action = run.getAction(NomadJobTemplateAction.class);
-                if (action == null) {
-                    action = new NomadJobTemplateAction(run);
-                    run.addAction(action);
-                }
-                String template = action.stack.pop();
-                bc.commit();
-                return template;
-            } finally {
-                bc.abort();
+            if (stack.isEmpty()) {
                 return null;
             }
+            template = stack.pop();
         }
+        scheduleSave();
+        return template;
     }
 
     public List<String> getParentTemplateList() {
@@ -7,9 +7,11 @@ import info.multani.jenkins.plugins.nomad.NomadCloud;
 import info.multani.jenkins.plugins.nomad.NomadJobTemplate;
 import info.multani.jenkins.plugins.nomad.NomadJobTemplateSource;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 
@@ -29,6 +31,11 @@ public class NomadJobTemplateMap {
      */
     private Map<String, List<NomadJobTemplate>> map = new CopyOnWriteMap.Hash<>();
 
+    /**
+     * Shared templates indexed by cloud name and sharing key
+     */
+    private final Map<String, SharedTemplate> sharedTemplates = new HashMap<>();
+
     /**
      * Returns a read-only view of the templates available for the corresponding cloud instance.
      * @param cloud The Nomad cloud instance for which templates are needed
@@ -59,6 +66,72 @@ public class NomadJobTemplateMap {
         getOrCreateTemplateList(cloud).remove(jobTemplate);
     }
 
+    /**
+     * Returns the shared template registered under the given key for the
+     * corresponding cloud instance, registering the candidate template if
+     * there is none yet.
+     *
+     * Each call must be balanced by a call to
+     * {@link #releaseSharedTemplate(NomadCloud, String)}.
+     *
+     * @param cloud The cloud instance.
+     * @param key The sharing key of the template.
+     * @param candidate The template to register if none is shared yet.
+     * @return the template shared under this key.
+     */
+    @Nonnull
+    public synchronized NomadJobTemplate acquireSharedTemplate(@Nonnull NomadCloud cloud, @Nonnull String key,
+            @Nonnull NomadJobTemplate candidate) {
+        String id = cloud.name + "/" + key;
+        SharedTemplate shared = sharedTemplates.get(id);
+        if (shared == null) {
+            LOGGER.log(Level.FINE, "Registering shared job template {0} for key {1}",
+                    new Object[]{candidate.getName(), id});
+            shared = new SharedTemplate(candidate);
+            sharedTemplates.put(id, shared);
+            addTemplate(cloud, candidate);
+        }
+        shared.references++;
+        return shared.template;
+    }
+
+    /**
+     * Releases a template acquired with
+     * {@link #acquireSharedTemplate(NomadCloud, String, NomadJobTemplate)}.
+     * The template is removed once it isn't used anymore.
+     *
+     * @param cloud The cloud instance.
+     * @param key The sharing key of the template.
+     * @return true if the template has been removed.
+     */
+    public synchronized boolean releaseSharedTemplate(@Nonnull NomadCloud cloud, @Nonnull String key) {
+        String id = cloud.name + "/" + key;
+        SharedTemplate shared = sharedTemplates.get(id);
+        if (shared == null) {
+            return false;
+        }
+        shared.references--;
+        if (shared.references > 0) {
+            return false;
+        }
+        LOGGER.log(Level.FINE, "Removing shared job template {0} for key {1}",
+                new Object[]{shared.template.getName(), id});
+        sharedTemplates.remove(id);
+        removeTemplate(cloud, shared.template);
+        return true;
+    }
+
+    private static class SharedTemplate {
+
+        private final NomadJobTemplate template;
+
+        private int references;
+
+        private SharedTemplate(NomadJobTemplate template) {
+            this.template = template;
+        }
+    }
+
     @Extension
     public static class JobTemplateSourceImpl extends NomadJobTemplateSource {
 
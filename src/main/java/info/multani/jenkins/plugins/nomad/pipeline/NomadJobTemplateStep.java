@@ -8,6 +8,11 @@ import hudson.model.TaskListener;
 import info.multani.jenkins.plugins.nomad.NomadJobTemplate;
 import info.multani.jenkins.plugins.nomad.TaskTemplate;
 import info.multani.jenkins.plugins.nomad.model.EnvVar;
+import info.multani.jenkins.plugins.nomad.model.Affinity;
+import info.multani.jenkins.plugins.nomad.model.Constraint;
+import info.multani.jenkins.plugins.nomad.model.Spread;
+import info.multani.jenkins.plugins.nomad.model.Volume;
+import info.multani.jenkins.plugins.nomad.model.VolumeMount;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -42,11 +47,38 @@ public class NomadJobTemplateStep extends Step implements Serializable {
 
     private int instanceCap = Integer.MAX_VALUE;
     private int idleMinutes;
+    private int numExecutors = 1;
     private int slaveConnectTimeout = NomadJobTemplate.DEFAULT_SLAVE_JENKINS_CONNECTION_TIMEOUT;
 
     private Node.Mode nodeUsageMode;
     private String workingDir = TaskTemplate.DEFAULT_WORKING_DIR;
 
+    private boolean shareTemplate;
+
+    private int preProvision;
+
+    private boolean colocateTasks;
+
+    private boolean stickyNode;
+
+    private String cacheVolume;
+
+    private String cachePath = NomadJobTemplate.DEFAULT_CACHE_PATH;
+
+    private List<Volume> volumes = new ArrayList<>();
+
+    private List<VolumeMount> volumeMounts = new ArrayList<>();
+
+    private Integer priority;
+
+    private boolean preemptible;
+
+    private List<Constraint> constraints = new ArrayList<>();
+
+    private List<Affinity> affinities = new ArrayList<>();
+
+    private List<Spread> spreads = new ArrayList<>();
+
     @DataBoundConstructor
     public NomadJobTemplateStep(String label, String name) {
         this.label = label;
@@ -106,7 +138,7 @@ public class NomadJobTemplateStep extends Step implements Serializable {
         }
 
         return this.taskGroups.stream()
-            .map(tg -> tg.buildExecutionTaskTemplate(runEnvVars))
+            .map(tg -> tg.buildExecutionTaskTemplate(runEnvVars).intern())
             .collect(Collectors.toList());
     }
 
@@ -140,6 +172,15 @@ public class NomadJobTemplateStep extends Step implements Serializable {
         this.idleMinutes = idleMinutes;
     }
 
+    public int getNumExecutors() {
+        return numExecutors;
+    }
+
+    @DataBoundSetter
+    public void setNumExecutors(int numExecutors) {
+        this.numExecutors = numExecutors;
+    }
+
     public int getSlaveConnectTimeout() {
         return slaveConnectTimeout;
     }
@@ -172,6 +213,123 @@ public class NomadJobTemplateStep extends Step implements Serializable {
         this.workingDir = workingDir;
     }
 
+    public boolean isShareTemplate() {
+        return shareTemplate;
+    }
+
+    @DataBoundSetter
+    public void setShareTemplate(boolean shareTemplate) {
+        this.shareTemplate = shareTemplate;
+    }
+
+    public int getPreProvision() {
+        return preProvision;
+    }
+
+    @DataBoundSetter
+    public void setPreProvision(int preProvision) {
+        this.preProvision = preProvision;
+    }
+
+    public boolean isColocateTasks() {
+        return colocateTasks;
+    }
+
+    @DataBoundSetter
+    public void setColocateTasks(boolean colocateTasks) {
+        this.colocateTasks = colocateTasks;
+    }
+
+    public boolean isStickyNode() {
+        return stickyNode;
+    }
+
+    @DataBoundSetter
+    public void setStickyNode(boolean stickyNode) {
+        this.stickyNode = stickyNode;
+    }
+
+    public String getCacheVolume() {
+        return cacheVolume;
+    }
+
+    @DataBoundSetter
+    public void setCacheVolume(String cacheVolume) {
+        this.cacheVolume = cacheVolume;
+    }
+
+    public String getCachePath() {
+        return cachePath;
+    }
+
+    @DataBoundSetter
+    public void setCachePath(String cachePath) {
+        this.cachePath = cachePath;
+    }
+
+    public Integer getPriority() {
+        return priority;
+    }
+
+    @DataBoundSetter
+    public void setPriority(Integer priority) {
+        this.priority = priority;
+    }
+
+    public boolean isPreemptible() {
+        return preemptible;
+    }
+
+    @DataBoundSetter
+    public void setPreemptible(boolean preemptible) {
+        this.preemptible = preemptible;
+    }
+
+    public List<Constraint> getConstraints() {
+        return constraints;
+    }
+
+    @DataBoundSetter
+    public void setConstraints(List<Constraint> constraints) {
+        this.constraints = constraints;
+    }
+
+    public List<Affinity> getAffinities() {
+        return affinities;
+    }
+
+    @DataBoundSetter
+    public void setAffinities(List<Affinity> affinities) {
+        this.affinities = affinities;
+    }
+
+    public List<Spread> getSpreads() {
+        return spreads;
+    }
+
+    @DataBoundSetter
+    public void setSpreads(List<Spread> spreads) {
+        this.spreads = spreads;
+    }
+
+    public List<Volume> getVolumes() {
+        return volumes;
+    }
+
+    @DataBoundSetter
+    public void setVolumes(List<Volume> volumes) {
+        this.volumes = volumes;
+    }
+
+    public List<VolumeMount> getVolumeMounts() {
+        return volumeMounts;
+    }
+
+    @DataBoundSetter
+    public void setVolumeMounts(List<VolumeMount> volumeMounts) {
+        this.volumeMounts = volumeMounts;
+    }
+
     @Override
     public StepExecution start(StepContext context) throws Exception {
         return new NomadJobTemplateStepExecution(this, context);
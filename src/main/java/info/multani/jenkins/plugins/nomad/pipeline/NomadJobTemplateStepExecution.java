@@ -1,20 +1,22 @@
 package info.multani.jenkins.plugins.nomad.pipeline;
 
-import com.hashicorp.nomad.javasdk.EvaluationResponse;
-import com.hashicorp.nomad.javasdk.NomadApiClient;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
+import hudson.EnvVars;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.slaves.Cloud;
+import info.multani.jenkins.plugins.nomad.NomadCleanupService;
 import info.multani.jenkins.plugins.nomad.NomadCloud;
 import info.multani.jenkins.plugins.nomad.NomadJobTemplate;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Map;
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.EnvironmentExpander;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 
 public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
@@ -23,6 +25,14 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
 
     private static final long serialVersionUID = -6139090518333729333L;
 
+    /**
+     * Name of the environment variable holding the label of the template
+     */
+    public static final String NOMAD_LABEL_VARIABLE = "NOMAD_LABEL";
+
+    private static final String SHARED_NAME_FORMAT = "%s-%s";
+
+    private static final int SHARED_HASH_LENGTH = 12;
 
     @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "not needed on deserialization")
     private final transient NomadJobTemplateStep step;
@@ -30,6 +40,11 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
 
     private NomadJobTemplate newTemplate = null;
 
+    /**
+     * Sharing key of the template, if the template is shared with other steps
+     */
+    private String sharedKey = null;
+
     NomadJobTemplateStepExecution(NomadJobTemplateStep step, StepContext context) {
         super(context);
         this.step = step;
@@ -57,19 +72,57 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
         Map<String, String> runEnvVars = run.getEnvironment(taskListener);
 
         newTemplate = new NomadJobTemplate();
-        newTemplate.generateName(step.getName());
         newTemplate.setRegion(step.getRegion());
         newTemplate.setDatacenters(step.getDatacenters());
         newTemplate.setInstanceCap(step.getInstanceCap());
         newTemplate.setIdleMinutes(step.getIdleMinutes());
+        newTemplate.setNumExecutors(step.getNumExecutors());
         newTemplate.setSlaveConnectTimeout(step.getSlaveConnectTimeout());
-        newTemplate.setLabel(step.getLabel());
         newTemplate.setEnvVars(step.getEnvVars());
         newTemplate.setTaskGroups(step.buildExecutionTaskGroups(runEnvVars));
         newTemplate.setNodeUsageMode(step.getNodeUsageMode());
+        newTemplate.setColocateTasks(step.isColocateTasks());
+        newTemplate.setStickyNode(step.isStickyNode());
+        newTemplate.setCacheVolume(step.getCacheVolume());
+        newTemplate.setCachePath(step.getCachePath());
+        newTemplate.setVolumes(step.getVolumes());
+        newTemplate.setVolumeMounts(step.getVolumeMounts());
+        newTemplate.setPriority(step.getPriority());
+        newTemplate.setPreemptible(step.isPreemptible());
+        newTemplate.setConstraints(step.getConstraints());
+        newTemplate.setAffinities(step.getAffinities());
+        newTemplate.setSpreads(step.getSpreads());
+
+        if (step.isShareTemplate()) {
+            // Steps declaring the same job share the same template, and can
+            // reuse the agents left idle by each other.
+            String hash = newTemplate.getSpecHash();
+            String sharedName = String.format(SHARED_NAME_FORMAT, step.getName(), hash.substring(0, SHARED_HASH_LENGTH));
+            newTemplate.setName(sharedName);
+            newTemplate.setLabel(step.getLabel() == null ? sharedName : step.getLabel());
+            sharedKey = newTemplate.getLabel() + "@" + hash;
+            newTemplate = nomadCloud.acquireSharedDynamicTemplate(sharedKey, newTemplate);
+            taskListener.getLogger().printf("Using shared Nomad job template %s (label: %s)%n",
+                    newTemplate.getName(), newTemplate.getLabel());
+        } else {
+            newTemplate.generateName(step.getName());
+            newTemplate.setLabel(step.getLabel());
+            nomadCloud.addDynamicTemplate(newTemplate);
+        }
 
-        nomadCloud.addDynamicTemplate(newTemplate);
-        getContext().newBodyInvoker().withContext(step).withCallback(new NomadJobTemplateCallback(newTemplate)).start();
+        if (step.getPreProvision() > 0) {
+            // Start the agents while the pipeline is doing its own setup,
+            // they'll be ready by the time the body requests them.
+            int started = nomadCloud.preProvision(newTemplate, step.getPreProvision());
+            taskListener.getLogger().printf("Pre-provisioning %d Nomad agent(s) from template %s%n",
+                    started, newTemplate.getName());
+        }
+
+        getContext().newBodyInvoker()
+                .withContexts(step, EnvironmentExpander.merge(getContext().get(EnvironmentExpander.class),
+                        new NomadLabelExpander(newTemplate.getLabel())))
+                .withCallback(new NomadJobTemplateCallback(newTemplate, sharedKey))
+                .start();
 
         NomadJobTemplateAction.push(run, newTemplate.getName());
         return false;
@@ -77,7 +130,8 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
 
     @Override
     public void stop(Throwable cause) throws Exception {
-        new NomadJobTemplateAction(getContext().get(Run.class)).pop();
+        // The template is popped by the body callback, once the body has been
+        // stopped.
     }
 
     /**
@@ -95,7 +149,11 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
                     cloud.getClass().getName()));
         }
         NomadCloud nomadCloud = (NomadCloud) cloud;
-        nomadCloud.addDynamicTemplate(newTemplate);
+        if (sharedKey != null) {
+            newTemplate = nomadCloud.acquireSharedDynamicTemplate(sharedKey, newTemplate);
+        } else {
+            nomadCloud.addDynamicTemplate(newTemplate);
+        }
     }
 
     private class NomadJobTemplateCallback extends BodyExecutionCallback.TailCall {
@@ -104,8 +162,11 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
 
         private final NomadJobTemplate jobTemplate;
 
-        private NomadJobTemplateCallback(NomadJobTemplate jobTemplate) {
+        private final String sharedKey;
+
+        private NomadJobTemplateCallback(NomadJobTemplate jobTemplate, String sharedKey) {
             this.jobTemplate = jobTemplate;
+            this.sharedKey = sharedKey;
         }
 
         @Override
@@ -113,6 +174,8 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
          * Remove the template after step is done
          */
         protected void finished(StepContext context) throws Exception {
+            NomadJobTemplateAction.remove(context.get(Run.class), jobTemplate.getName());
+
             Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
             if (cloud == null) {
                 LOGGER.log(Level.WARNING, "Cloud {0} no longer exists, cannot delete job template {1}",
@@ -120,29 +183,47 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
                 return;
             }
             if (cloud instanceof NomadCloud) {
-                LOGGER.log(Level.INFO, "Removing job template and deleting job {1} from cloud {0}",
-                        new Object[]{cloud.name, jobTemplate.getName()});
                 NomadCloud nomadCloud = (NomadCloud) cloud;
-                nomadCloud.removeDynamicTemplate(jobTemplate);
-                NomadApiClient client = nomadCloud.connect();
-
-                LOGGER.log(Level.FINE, "Deregistering job {0} from cloud {0}",
-                        new Object[]{jobTemplate.getName(), cloud.name});
-                EvaluationResponse response = client.getJobsApi().deregister(jobTemplate.getName());
-                LOGGER.log(Level.FINE, "Deregistered {0} using evaluation ID {1}",
-                        new Object[]{jobTemplate.getName(), response.getValue()});
-
-                boolean deleted = response.getHttpResponse().getStatusLine().getStatusCode() == 200;
-                if (!deleted) {
-                    LOGGER.log(Level.WARNING, "Failed to deregister job {0}: HTTP {1}",
-                        new Object[]{jobTemplate.getName(),
-                            response.getHttpResponse().getStatusLine().getStatusCode()});
+                if (sharedKey != null) {
+                    // The agents of a shared template may still be used by
+                    // other builds: they are terminated by their retention
+                    // strategy only.
+                    LOGGER.log(Level.INFO, "Releasing shared job template {1} from cloud {0}",
+                            new Object[]{cloud.name, jobTemplate.getName()});
+                    nomadCloud.releaseSharedDynamicTemplate(sharedKey);
                     return;
                 }
+
+                LOGGER.log(Level.INFO, "Removing job template {1} from cloud {0}, deleting its jobs in the background",
+                        new Object[]{cloud.name, jobTemplate.getName()});
+                nomadCloud.removeDynamicTemplate(jobTemplate);
+                // Don't wait for Nomad here, this runs on the pipeline's thread
+                NomadCleanupService.get().enqueue(cloud.name, jobTemplate.getName() + "-");
             } else {
                 LOGGER.log(Level.WARNING, "Cloud is not a NomadCloud: {0} {1}",
                         new String[]{cloud.name, cloud.getClass().getName()});
             }
         }
     }
+
+    /**
+     * Exposes the label of the template to the body of the step.
+     */
+    private static class NomadLabelExpander extends EnvironmentExpander {
+
+        private static final long serialVersionUID = -3451287601925471293L;
+
+        private final String label;
+
+        NomadLabelExpander(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public void expand(EnvVars env) throws IOException, InterruptedException {
+            if (label != null) {
+                env.override(NOMAD_LABEL_VARIABLE, label);
+            }
+        }
+    }
 }